@@ -11,4 +11,6 @@ public class Attribute {
 	public static final String EMAIL = "email";
 	public static final String ADDRESS = "address";
 	public static final String MEDICALHISTORY = "medicalHistory";
+	// Query only: a term in the patient's medical history
+	public static final String DIAGNOSIS = "diagnosis";
 }
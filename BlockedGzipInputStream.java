@@ -0,0 +1,184 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a blocked gzip (BGZF) stream: a series of gzip members of at most
+ * 64 KB each, whose size is stored in a "BC" extra field. Since every block
+ * can be found without decompressing the ones before it, blocks are read
+ * ahead and decompressed on a pool of threads, then handed out in order.
+ * @author VG
+ *
+ */
+public class BlockedGzipInputStream extends InputStream {
+	private static final int HEADER_SIZE = 12;
+	private static final int FEXTRA = 4;
+
+	private final DataInputStream in;
+	private final int readAhead;
+	private final ExecutorService executor;
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private byte[] block = new byte[0];
+	private int position = 0;
+	private boolean eof = false;
+
+	/**
+	 * Constructor for blocked gzip input stream.
+	 * @param in compressed stream, positioned at the first block
+	 * @param threads number of blocks decompressed at the same time
+	 */
+	public BlockedGzipInputStream(InputStream in, int threads) {
+		this.in = new DataInputStream(in);
+		threads = Math.max(1, threads);
+		this.readAhead = 2 * threads;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "emr-inflate");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Check whether a stream starts with a blocked gzip header
+	 * @param header first bytes of the stream
+	 * @param length number of bytes in header
+	 * @return
+	 */
+	static boolean isBlocked(byte[] header, int length) {
+		return length >= 16 && (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b
+				&& (header[3] & FEXTRA) != 0 && header[12] == 'B' && header[13] == 'C';
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!this.nextBlock()) return -1;
+		return this.block[this.position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (!this.nextBlock()) return -1;
+		int n = Math.min(len, this.block.length - this.position);
+		System.arraycopy(this.block, this.position, b, off, n);
+		this.position += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.executor.shutdownNow();
+		this.in.close();
+	}
+
+	/**
+	 * Make sure the current block has bytes left, moving on to the next
+	 * non-empty block if needed
+	 * @return false at the end of the stream
+	 */
+	private boolean nextBlock() throws IOException {
+		while (this.position == this.block.length) {
+			this.readAhead();
+			if (this.pending.isEmpty()) return false;
+			try {
+				this.block = this.pending.poll().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Decompression interrupted");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				throw new IOException("Decompression failed", e.getCause());
+			}
+			this.position = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Read compressed blocks and queue them for decompression until enough
+	 * are in flight
+	 */
+	private void readAhead() throws IOException {
+		while (!this.eof && this.pending.size() < this.readAhead) {
+			final byte[] compressed = this.readBlock();
+			if (compressed == null) {
+				this.eof = true;
+				break;
+			}
+			this.pending.add(this.executor.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					return inflate(compressed);
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Read the next block, without its header
+	 * @return compressed data followed by CRC32 and uncompressed size, or null
+	 * at the end of the stream
+	 */
+	private byte[] readBlock() throws IOException {
+		byte[] header = new byte[HEADER_SIZE];
+		int first = this.in.read();
+		if (first < 0) return null;
+		header[0] = (byte) first;
+		this.in.readFully(header, 1, HEADER_SIZE - 1);
+		if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b
+				|| (header[3] & FEXTRA) == 0)
+			throw new IOException("Not a blocked gzip block");
+
+		// Find the block size among the extra subfields
+		byte[] extra = new byte[littleEndian(header, 10, 2)];
+		this.in.readFully(extra);
+		int blockSize = -1;
+		for (int i = 0; i + 4 <= extra.length; i += 4 + littleEndian(extra, i + 2, 2)) {
+			if (extra[i] == 'B' && extra[i + 1] == 'C' && littleEndian(extra, i + 2, 2) == 2)
+				blockSize = littleEndian(extra, i + 4, 2) + 1;
+		}
+		if (blockSize < 0) throw new IOException("Blocked gzip block without size");
+
+		byte[] rest = new byte[blockSize - HEADER_SIZE - extra.length];
+		this.in.readFully(rest);
+		return rest;
+	}
+
+	private static byte[] inflate(byte[] compressed) throws IOException {
+		int trailer = compressed.length - 8;
+		byte[] data = new byte[littleEndian(compressed, trailer + 4, 4)];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(compressed, 0, trailer);
+			int n = 0;
+			while (n < data.length && !inflater.finished()) {
+				int inflated = inflater.inflate(data, n, data.length - n);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				n += inflated;
+			}
+			if (n != data.length) throw new IOException("Truncated blocked gzip block");
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt blocked gzip block", e);
+		} finally {
+			inflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		if ((int) crc.getValue() != littleEndian(compressed, trailer, 4))
+			throw new IOException("Blocked gzip block fails its CRC check");
+		return data;
+	}
+
+	private static int littleEndian(byte[] b, int offset, int length) {
+		int value = 0;
+		for (int i = length - 1; i >= 0; i--) value = (value << 8) | (b[offset + i] & 0xff);
+		return value;
+	}
+}
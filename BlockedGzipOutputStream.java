@@ -0,0 +1,92 @@
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a blocked gzip (BGZF) stream, readable by any gzip reader and by
+ * BlockedGzipInputStream. Data is cut into blocks of at most 65280 bytes,
+ * each compressed as its own gzip member with its size in a "BC" extra
+ * field; an empty block marks the end of the stream.
+ * @author VG
+ *
+ */
+public class BlockedGzipOutputStream extends FilterOutputStream {
+	private static final int BLOCK_DATA_SIZE = 0xff00;
+	private static final byte[] EOF_BLOCK = {
+		0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+		0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+
+	private final byte[] data = new byte[BLOCK_DATA_SIZE];
+	private final byte[] compressed = new byte[BLOCK_DATA_SIZE + 1024];
+	private int size = 0;
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private final CRC32 crc = new CRC32();
+
+	public BlockedGzipOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (this.size == this.data.length) this.writeBlock();
+		this.data[this.size++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (this.size == this.data.length) this.writeBlock();
+			int n = Math.min(len, this.data.length - this.size);
+			System.arraycopy(b, off, this.data, this.size, n);
+			this.size += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Write the buffered data as a block, so everything written so far can
+	 * be read back
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (this.size > 0) this.writeBlock();
+		this.out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (this.size > 0) this.writeBlock();
+			this.out.write(EOF_BLOCK);
+			this.out.close();
+		} finally {
+			this.deflater.end();
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		this.deflater.reset();
+		this.deflater.setInput(this.data, 0, this.size);
+		this.deflater.finish();
+		int length = 0;
+		while (!this.deflater.finished())
+			length += this.deflater.deflate(this.compressed, length,
+					this.compressed.length - length);
+		this.crc.reset();
+		this.crc.update(this.data, 0, this.size);
+
+		int blockSize = 18 + length + 8;
+		byte[] header = { 0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0,
+				'B', 'C', 2, 0, (byte) (blockSize - 1), (byte) ((blockSize - 1) >> 8) };
+		this.out.write(header);
+		this.out.write(this.compressed, 0, length);
+		this.writeInt((int) this.crc.getValue());
+		this.writeInt(this.size);
+		this.size = 0;
+	}
+
+	private void writeInt(int value) throws IOException {
+		for (int i = 0; i < 4; i++) this.out.write(value >>> (8 * i));
+	}
+}
@@ -8,4 +8,7 @@ public class Command {
 	public static final String QUERY = "query";
 	public static final String DELETE = "delete";
 	public static final String SAVE = "save";
+	public static final String AGGREGATE = "aggregate";
+	// Closes a block of patients opened by an "add" line without data
+	public static final String END = "end";
 }
\ No newline at end of file
@@ -0,0 +1,96 @@
+import java.util.*;
+
+/**
+ * Finds duplicate patients while a record file is loaded. Each patient is
+ * hashed under two blocking keys: its normalized name plus birthday, which
+ * identifies the same person written the same way, and the phonetic code of
+ * its name plus birthday, which groups spellings that sound alike. Only the
+ * patients sharing a block are ever compared, so the cost stays close to
+ * linear in the number of records.
+ * @author VG
+ *
+ */
+public class Deduplicator {
+	private Map<String, Patient> patientsByName = new HashMap<String, Patient>();
+	private Map<String, LinkedList<Patient>> patientsBySound =
+			new HashMap<String, LinkedList<Patient>>();
+	private Map<Patient, Patient> representatives = new HashMap<Patient, Patient>();
+	private Map<Patient, LinkedList<Patient>> duplicates =
+			new LinkedHashMap<Patient, LinkedList<Patient>>();
+
+	/**
+	 * Find the first patient with the same normalized name and birthday
+	 * @param name
+	 * @param birthday
+	 * @return patient, or null if none
+	 */
+	public Patient findExact(String name, Date birthday) {
+		return this.patientsByName.get(nameKey(name, birthday));
+	}
+
+	/**
+	 * Find the patients whose name sounds like the given one and who share
+	 * the given birthday, in the order they were added
+	 * @param name
+	 * @param birthday
+	 * @return patients, empty if none
+	 */
+	public LinkedList<Patient> findSimilar(String name, Date birthday) {
+		LinkedList<Patient> similar = this.patientsBySound.get(soundKey(name, birthday));
+		if (similar == null) return new LinkedList<Patient>();
+		return new LinkedList<Patient>(similar);
+	}
+
+	/**
+	 * Index patient under its blocking keys
+	 * @param patient
+	 */
+	public void add(Patient patient) {
+		String nameKey = nameKey(patient.getName(), patient.getBirthday());
+		if (!this.patientsByName.containsKey(nameKey))
+			this.patientsByName.put(nameKey, patient);
+		String soundKey = soundKey(patient.getName(), patient.getBirthday());
+		LinkedList<Patient> similar = this.patientsBySound.get(soundKey);
+		if (similar == null) {
+			similar = new LinkedList<Patient>();
+			this.patientsBySound.put(soundKey, similar);
+		}
+		similar.add(patient);
+	}
+
+	/**
+	 * Record that duplicate is likely the same person as match. Duplicates of
+	 * duplicates are grouped under the first patient of the group.
+	 * @param match patient already loaded
+	 * @param duplicate patient being loaded
+	 */
+	public void addDuplicate(Patient match, Patient duplicate) {
+		Patient representative = this.representatives.get(match);
+		if (representative == null) representative = match;
+		this.representatives.put(duplicate, representative);
+		LinkedList<Patient> group = this.duplicates.get(representative);
+		if (group == null) {
+			group = new LinkedList<Patient>();
+			group.add(representative);
+			this.duplicates.put(representative, group);
+		}
+		group.add(duplicate);
+	}
+
+	/**
+	 * Get the groups of likely duplicates found so far, in the order the
+	 * first duplicate of each group was found
+	 * @return groups, each starting with its first loaded patient
+	 */
+	public Collection<LinkedList<Patient>> getDuplicates() {
+		return this.duplicates.values();
+	}
+
+	private static String nameKey(String name, Date birthday) {
+		return EMRUtil.normalizeName(name) + "|" + birthday.getTime();
+	}
+
+	private static String soundKey(String name, Date birthday) {
+		return EMRUtil.soundex(name) + "|" + birthday.getTime();
+	}
+}
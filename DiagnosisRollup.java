@@ -0,0 +1,273 @@
+import java.util.*;
+
+/**
+ * Diagnosis counts per term over time, kept up to date as diagnoses are added
+ * to or removed from patients. For every term, the number of diagnoses per
+ * day is held in a Fenwick tree over a range of days covering every day that
+ * term occurs on, so the count for any window or period is two prefix sums.
+ * The number of distinct patients diagnosed with a term is tracked per day,
+ * month and year.
+ * @author VG
+ *
+ */
+public class DiagnosisRollup {
+	public enum Granularity { DAY, MONTH, YEAR }
+
+	/**
+	 * One line of an aggregate: diagnoses of a term within one period
+	 */
+	public static class Row {
+		private final String term;
+		private final String period;
+		private final long diagnoses;
+		private final int patients;
+
+		Row(String term, String period, long diagnoses, int patients) {
+			this.term = term;
+			this.period = period;
+			this.diagnoses = diagnoses;
+			this.patients = patients;
+		}
+
+		public String getTerm() { return this.term; }
+		public String getPeriod() { return this.period; }
+		public long getDiagnoses() { return this.diagnoses; }
+		public int getPatients() { return this.patients; }
+	}
+
+	// Days are numbered year * 372 + month * 31 + day, leaving gaps for the
+	// short months, so months and years are plain integer divisions
+	private static final int MONTH_DAYS = 31;
+	private static final int YEAR_DAYS = 12 * MONTH_DAYS;
+
+	private final Map<String, TermRollup> terms = new TreeMap<String, TermRollup>();
+
+	/**
+	 * Count diagnoses of a patient
+	 * @param patient
+	 * @param diagnoses
+	 */
+	public synchronized void add(Patient patient, Collection<Diagnosis> diagnoses) {
+		this.update(patient, diagnoses, 1);
+	}
+
+	/**
+	 * Stop counting diagnoses of a patient
+	 * @param patient
+	 * @param diagnoses
+	 */
+	public synchronized void remove(Patient patient, Collection<Diagnosis> diagnoses) {
+		this.update(patient, diagnoses, -1);
+	}
+
+	/**
+	 * Count diagnoses per period within a window
+	 * @param term diagnosis term, or null for every term
+	 * @param start first day of the window (inclusive), or null for no lower bound
+	 * @param end last day of the window (inclusive), or null for no upper bound
+	 * @param granularity length of a period
+	 * @return one row per term and period with diagnoses, by term then period
+	 */
+	public synchronized LinkedList<Row> rows(String term, Date start, Date end,
+			Granularity granularity) {
+		LinkedList<Row> rows = new LinkedList<Row>();
+		for (Map.Entry<String, TermRollup> entry : this.select(term).entrySet()) {
+			TermRollup rollup = entry.getValue();
+			int from = start == null ? rollup.firstDay() : dayOf(start);
+			int to = end == null ? rollup.lastDay() : dayOf(end);
+			// Jump from one period with diagnoses to the next, counting each
+			// period from the tree at its boundaries
+			Integer day = rollup.nextDay(from);
+			while (day != null && day <= to) {
+				int bucket = bucketOf(day, granularity);
+				int last = lastDayOf(bucket, granularity);
+				long count = rollup.count(Math.max(from, firstDayOf(bucket, granularity)),
+						Math.min(to, last));
+				rows.add(new Row(entry.getKey(), label(bucket, granularity), count,
+						rollup.patients(granularity, bucket)));
+				day = rollup.nextDay(last + 1);
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Count diagnoses within a window
+	 * @param term diagnosis term, or null for every term
+	 * @param start first day of the window (inclusive), or null for no lower bound
+	 * @param end last day of the window (inclusive), or null for no upper bound
+	 * @return number of diagnoses
+	 */
+	public synchronized long count(String term, Date start, Date end) {
+		long count = 0;
+		for (TermRollup rollup : this.select(term).values()) {
+			count += rollup.count(start == null ? rollup.firstDay() : dayOf(start),
+					end == null ? rollup.lastDay() : dayOf(end));
+		}
+		return count;
+	}
+
+	private Map<String, TermRollup> select(String term) {
+		if (term == null) return this.terms;
+		TermRollup rollup = this.terms.get(EMRUtil.normalizeTerm(term));
+		if (rollup == null) return Collections.emptyMap();
+		return Collections.singletonMap(EMRUtil.normalizeTerm(term), rollup);
+	}
+
+	private void update(Patient patient, Collection<Diagnosis> diagnoses, int delta) {
+		if (diagnoses == null) return;
+		for (Diagnosis d : diagnoses) {
+			String term = EMRUtil.normalizeTerm(d.getInformation());
+			TermRollup rollup = this.terms.get(term);
+			if (rollup == null) {
+				if (delta < 0) continue;
+				rollup = new TermRollup();
+				this.terms.put(term, rollup);
+			}
+			rollup.update(dayOf(d.getDate()), patient.getId(), delta);
+			if (rollup.isEmpty()) this.terms.remove(term);
+		}
+	}
+
+	private static int dayOf(Date date) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(date);
+		return calendar.get(Calendar.YEAR) * YEAR_DAYS
+				+ calendar.get(Calendar.MONTH) * MONTH_DAYS
+				+ calendar.get(Calendar.DAY_OF_MONTH) - 1;
+	}
+
+	private static int bucketOf(int day, Granularity granularity) {
+		if (granularity == Granularity.YEAR) return day / YEAR_DAYS;
+		if (granularity == Granularity.MONTH) return day / MONTH_DAYS;
+		return day;
+	}
+
+	private static int firstDayOf(int bucket, Granularity granularity) {
+		if (granularity == Granularity.YEAR) return bucket * YEAR_DAYS;
+		if (granularity == Granularity.MONTH) return bucket * MONTH_DAYS;
+		return bucket;
+	}
+
+	private static int lastDayOf(int bucket, Granularity granularity) {
+		if (granularity == Granularity.YEAR) return bucket * YEAR_DAYS + YEAR_DAYS - 1;
+		if (granularity == Granularity.MONTH) return bucket * MONTH_DAYS + MONTH_DAYS - 1;
+		return bucket;
+	}
+
+	private static String label(int bucket, Granularity granularity) {
+		int day = firstDayOf(bucket, granularity);
+		int year = day / YEAR_DAYS;
+		int month = day % YEAR_DAYS / MONTH_DAYS + 1;
+		if (granularity == Granularity.YEAR) return String.format("%04d", year);
+		if (granularity == Granularity.MONTH) return String.format("%02d-%04d", month, year);
+		return String.format("%02d-%02d-%04d", day % MONTH_DAYS + 1, month, year);
+	}
+
+	/**
+	 * Rollup of a single term. Diagnosis counts are kept per day in a sorted
+	 * map and mirrored in a Fenwick tree over a contiguous range of days, so
+	 * every update is applied to the tree in place. The range only changes
+	 * when a day falls outside it: it is then at least doubled and the tree
+	 * rebuilt in linear time, which happens a logarithmic number of times.
+	 */
+	private static class TermRollup {
+		private static final int MIN_DAYS = 512;
+
+		private final TreeMap<Integer, long[]> counts = new TreeMap<Integer, long[]>();
+		private final List<Map<Integer, Map<Integer, Integer>>> patients =
+				new ArrayList<Map<Integer, Map<Integer, Integer>>>();
+		// tree[i] covers days ending at base + i - 1
+		private int base = 0;
+		private long[] tree = new long[1];
+
+		TermRollup() {
+			for (int i = 0; i < Granularity.values().length; i++)
+				this.patients.add(new HashMap<Integer, Map<Integer, Integer>>());
+		}
+
+		boolean isEmpty() { return this.counts.isEmpty(); }
+		int firstDay() { return this.counts.isEmpty() ? 0 : this.counts.firstKey(); }
+		int lastDay() { return this.counts.isEmpty() ? -1 : this.counts.lastKey(); }
+
+		/**
+		 * First day with diagnoses from the given day on, or null if none
+		 */
+		Integer nextDay(int day) {
+			return this.counts.ceilingKey(day);
+		}
+
+		void update(int day, int patientId, int delta) {
+			long[] count = this.counts.get(day);
+			if (count == null) {
+				if (delta < 0) return;
+				count = new long[1];
+				this.counts.put(day, count);
+				this.cover(day);
+			}
+			count[0] += delta;
+			if (count[0] <= 0) this.counts.remove(day);
+			for (int i = day - this.base + 1; i < this.tree.length; i += i & -i)
+				this.tree[i] += delta;
+			for (Granularity granularity : Granularity.values()) {
+				Map<Integer, Map<Integer, Integer>> buckets =
+						this.patients.get(granularity.ordinal());
+				int bucket = bucketOf(day, granularity);
+				Map<Integer, Integer> perPatient = buckets.get(bucket);
+				if (perPatient == null) {
+					perPatient = new HashMap<Integer, Integer>();
+					buckets.put(bucket, perPatient);
+				}
+				Integer n = perPatient.get(patientId);
+				int updated = (n == null ? 0 : n) + delta;
+				if (updated > 0) perPatient.put(patientId, updated);
+				else perPatient.remove(patientId);
+				if (perPatient.isEmpty()) buckets.remove(bucket);
+			}
+		}
+
+		/**
+		 * Number of diagnoses between two days, both inclusive
+		 */
+		long count(int from, int to) {
+			from = Math.max(from, this.base);
+			to = Math.min(to, this.base + this.tree.length - 2);
+			if (from > to) return 0;
+			return this.prefix(to - this.base + 1) - this.prefix(from - this.base);
+		}
+
+		int patients(Granularity granularity, int bucket) {
+			Map<Integer, Integer> perPatient =
+					this.patients.get(granularity.ordinal()).get(bucket);
+			return perPatient == null ? 0 : perPatient.size();
+		}
+
+		private long prefix(int n) {
+			long sum = 0;
+			for (int i = n; i > 0; i -= i & -i) sum += this.tree[i];
+			return sum;
+		}
+
+		/**
+		 * Make sure the tree covers a day, growing the range towards it and
+		 * rebuilding the tree from the day counts if needed
+		 */
+		private void cover(int day) {
+			int size = this.tree.length - 1;
+			if (size > 0 && day >= this.base && day < this.base + size) return;
+			int first = size == 0 ? day : Math.min(day, this.base);
+			int last = size == 0 ? day : Math.max(day, this.base + size - 1);
+			int newSize = Math.max(MIN_DAYS, 2 * size);
+			while (newSize < last - first + 1) newSize *= 2;
+			// Keep the old range and extend it on the side of the new day
+			this.base = size > 0 && day < this.base ? last - newSize + 1 : first;
+			this.tree = new long[newSize + 1];
+			for (Map.Entry<Integer, long[]> entry : this.counts.entrySet())
+				this.tree[entry.getKey() - this.base + 1] += entry.getValue()[0];
+			for (int i = 1; i < this.tree.length; i++) {
+				int parent = i + (i & -i);
+				if (parent < this.tree.length) this.tree[parent] += this.tree[i];
+			}
+		}
+	}
+}
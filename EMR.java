@@ -2,30 +2,61 @@ import java.io.*;
 
 public class EMR {  
     public static void main(String[] args) throws Exception {
+        // java EMR watch <records> <instructions> <output> <report>
+        if (args.length == 5 && args[0].equals("watch")) {
+            new RecordWatcher(
+                new File(args[1]), 
+                new File(args[2]), 
+                new File(args[3]),
+                new File(args[4]),
+                new RecordOptions(), 1000).run();
+            return;
+        }
+        // java EMR serve <records> <output> <socket file>
+        if (args.length == 4 && args[0].equals("serve")) {
+            RecordServer server = new RecordServer(
+                new File(args[1]), 
+                new File(args[2]),
+                new RecordOptions(), new File(args[3]));
+            System.out.println("Listening on " + server.bind());
+            server.run();
+            return;
+        }
+        // java EMR [cache <run cache file>]
+        RecordOptions options = new RecordOptions();
+        if (args.length == 2 && args[0].equals("cache"))
+            options.setRunCache(new RunCache(new File(args[1])));
         Record record1 = new Record(
             new File("samples/records01.txt"), 
             new File("samples/instructions01.txt"), 
             new File("outputs/output01.txt"),
-            new File("outputs/report01.txt"));
+            new File("outputs/report01.txt"),
+            options);
         Record record2 = new Record(
             new File("samples/records02.txt"), 
             new File("samples/instructions02.txt"), 
             new File("outputs/output02.txt"),
-            new File("outputs/report02.txt"));
+            new File("outputs/report02.txt"),
+            options);
         Record record3 = new Record(
             new File("samples/records03.txt"), 
             new File("samples/instructions03.txt"), 
             new File("outputs/output03.txt"),
-            new File("outputs/report03.txt"));
+            new File("outputs/report03.txt"),
+            options);
         Record record4 = new Record(
             new File("samples/records04.txt"), 
             new File("samples/instructions04.txt"), 
             new File("outputs/output04.txt"),
-            new File("outputs/report04.txt"));
+            new File("outputs/report04.txt"),
+            options);
         Record record5 = new Record(
             new File("samples/records05.txt"), 
             new File("samples/instructions05.txt"), 
             new File("outputs/output05.txt"),
-            new File("outputs/report05.txt"));
+            new File("outputs/report05.txt"),
+            options);
+        if (options.getRunCache() != null)
+            System.out.println(options.getRunCache());
     }
 }
@@ -112,6 +112,62 @@ public class EMRUtil {
 		return new SimpleDateFormat("dd-MM-yyyy", Locale.ENGLISH).format(date);
 	}
 	
+	/**
+	 * Normalize a patient's name for comparison: lower case, with runs of
+	 * whitespace collapsed to a single space.
+	 * @param name Patient's name
+	 * @return normalized name
+	 */
+	public static String normalizeName(String name) {
+		return name.replaceAll("\\s+", " ").trim().toLowerCase(Locale.ENGLISH);
+	}
+	
+	/**
+	 * Normalize a diagnosis term for comparison: lower case, with runs of
+	 * whitespace collapsed to a single space.
+	 * @param term diagnosis information
+	 * @return normalized term
+	 */
+	public static String normalizeTerm(String term) {
+		return term.replaceAll("\\s+", " ").trim().toLowerCase(Locale.ENGLISH);
+	}
+	
+	/**
+	 * Get the phonetic code of a name: the American Soundex code of each of
+	 * its words, separated by a space. Names that sound alike, such as
+	 * "Jon Smith" and "John Smyth", get the same code. A word without any
+	 * letter from a to z, as in names written in other scripts, is kept as it
+	 * is.
+	 * @param name Patient's name
+	 * @return phonetic code, e.g: "J500 S530"
+	 */
+	public static String soundex(String name) {
+		String codes = "01230120022455012623010202";
+		StringBuilder s = new StringBuilder();
+		for (String word : normalizeName(name).split(" ")) {
+			StringBuilder code = new StringBuilder(4);
+			char last = 0;
+			for (int i = 0; i < word.length() && code.length() < 4; i++) {
+				char c = word.charAt(i);
+				if (c < 'a' || c > 'z') continue;
+				char digit = codes.charAt(c - 'a');
+				if (code.length() == 0) code.append(Character.toUpperCase(c));
+				else if (digit != '0' && digit != last) code.append(digit);
+				// h and w do not separate letters with the same code
+				if (c != 'h' && c != 'w') last = digit;
+			}
+			if (word.isEmpty()) continue;
+			if (code.length() == 0) {
+				code.append(word);
+			} else {
+				while (code.length() < 4) code.append('0');
+			}
+			if (s.length() > 0) s.append(' ');
+			s.append(code);
+		}
+		return s.toString();
+	}
+	
 	/**
 	 * Check whether word equals to any keywords being used as patient's 
 	 * attributes.
@@ -137,4 +193,66 @@ public class EMRUtil {
 		}
 		return false;
 	}
-}
+	
+	/**
+	 * Read a string of medical history and convert them to
+	 * LinkedList<Diagnosis>, separated with either a newline or a comma
+	 * @param medicalHistory
+	 * @return LinkedList<Diagnosis>
+	 * @throws java.text.ParseException
+	 */
+	public static LinkedList<Diagnosis> readMedicalHistory(String medicalHistory)
+			throws java.text.ParseException {
+		if (medicalHistory == null) return null;
+		if (medicalHistory.split("\\s+").length < 2) return null;
+		
+		// Handles commas from 'add' instructions
+		medicalHistory = medicalHistory.replaceAll(",\\s*", "\n");
+		
+		LinkedList<Diagnosis> diagnoses = new LinkedList<Diagnosis>();
+		Scanner scanner = new Scanner(medicalHistory);
+		while (scanner.hasNextLine()) {
+			String date = "", information = "";
+			String[] words = scanner.nextLine().split("\\s+");
+			for (int i = 0; i < words.length; i++) {
+				if (EMRUtil.dateIsValid(words[i]))
+					date = words[i];
+				else
+					information += words[i] + " ";
+			}
+			diagnoses.add(new Diagnosis(EMRUtil.stringToDate(date.trim()),
+					information.trim()));
+		}
+		scanner.close();
+		return diagnoses;
+	}
+	
+	/**
+	 * Read a chunk of patient record and convert them to attribute value pairs
+	 * (pairs are in String) to be processed later. Value is a string following
+	 * an attribute keyword.
+	 * @param record
+	 * @return attribute value pairs, e.g: {"name", "John Smith"}
+	 */
+	public static Map<String, String> readPatientRecord(String record) {
+		Map<String, String> attributeValuePairs = new HashMap<String, String>();
+		String attribute = "", value = "";
+		Scanner scanner = new Scanner(record);
+
+		while (scanner.hasNextLine()) {
+			if (EMRUtil.scannerHasNextAttributeWord(scanner)) {
+				attribute = scanner.next();
+				while (!EMRUtil.scannerHasNextAttributeWord(scanner)) {
+					if (!scanner.hasNext())
+						break;
+					value += scanner.nextLine().replaceAll("\\s+", " ").trim()
+							+ "\n";
+				}
+				attributeValuePairs.put(attribute.trim(), value.trim());
+				value = "";
+			}
+		}
+		scanner.close();
+		return attributeValuePairs;
+	}
+}
\ No newline at end of file
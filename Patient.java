@@ -1,3 +1,5 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.*;
@@ -16,6 +18,18 @@ public class Patient {
     private String address;
     private String email;
     private LinkedList<Diagnosis> medicalHistory = new LinkedList<Diagnosis>(); 
+    // Record the remaining fields are read from, null once they are changed
+    private RecordBlock source;
+    // Slot of the spill file owned by this patient, -1 if none
+    private int slot = -1;
+    // Whether the remaining fields are read from the spill file slot
+    private boolean spilled = false;
+    // Whether phone, address, email and medical history are in memory
+    private boolean resident = true;
+    // Cache bounding the memory used by the remaining fields, if any
+    private PatientCache cache;
+    // Rollup notified of diagnoses added later on, if any
+    private DiagnosisRollup rollup;
     
     /**
      * Constructor for patient class.
@@ -38,30 +52,215 @@ public class Patient {
         if (medicalHistory != null) this.addDiagnoses(medicalHistory);
     }
     
+    /**
+     * Constructor for a lazily loaded patient. Only the fields needed to index
+     * the patient are set; phone, address, email and medical history are
+     * parsed from the record block the first time any of them is used.
+     * @param id Patient's unique ID
+     * @param name Patient's name
+     * @param birthday Patient's birthday
+     * @param source Record block holding the rest of the patient's data
+     */
+    public Patient(int id, String name, Date birthday, RecordBlock source) {
+        this.id = id;
+        this.name = name;
+        this.birthday = birthday;
+        this.source = source;
+        this.resident = false;
+    }
+    
     public void setName(String name) { this.name = name; }
     public void setBirthday(Date birthday) { this.birthday = birthday; }
-    public void setPhone(int phone) { this.phone = phone; }
-    public void setAddress(String address) { this.address = address; }
-    public void setEmail(String email) { this.email = email; }
+    public synchronized void setPhone(int phone) { this.modify(); this.phone = phone; }
+    public synchronized void setAddress(String address) { this.modify(); this.address = address; }
+    public synchronized void setEmail(String email) { this.modify(); this.email = email; }
     
     public int getId() { return this.id; }
     public String getName() { return this.name; }
     public Date getBirthday() { return this.birthday; }
-    public int getPhone() { return this.phone; }
-    public String getAddress() { return this.address; }
-    public String getEmail() { return this.email; }
-    public LinkedList<Diagnosis> getMedicalHistory() { return this.medicalHistory; }
+    public int getPhone() { this.materialize(); return this.phone; }
+    public String getAddress() { this.materialize(); return this.address; }
+    public String getEmail() { this.materialize(); return this.email; }
+    public synchronized LinkedList<Diagnosis> getMedicalHistory() { this.materialize(); return this.medicalHistory; }
+    public synchronized boolean isMaterialized() { return this.resident; }
+    
+    /**
+     * Count this patient's diagnoses in rollup, now and whenever more are
+     * added, until {@link #untrack()} is called.
+     * @param rollup
+     */
+    synchronized void track(DiagnosisRollup rollup) {
+        this.materialize();
+        rollup.add(this, this.medicalHistory);
+        this.rollup = rollup;
+    }
+    
+    /**
+     * Remove this patient's diagnoses from the rollup tracking it, if any
+     */
+    synchronized void untrack() {
+        if (this.rollup == null) return;
+        this.materialize();
+        this.rollup.remove(this, this.medicalHistory);
+        this.rollup = null;
+    }
+    
+    /**
+     * Keep this patient's phone, address, email and medical history within
+     * the memory budget of cache, from now on.
+     * @param cache
+     */
+    synchronized void setCache(PatientCache cache) {
+        this.cache = cache;
+        if (this.resident) cache.touch(this, this.estimateSize());
+    }
+    
+    /**
+     * Stop keeping this patient in its cache, e.g. once deleted
+     */
+    synchronized void removeCache() {
+        if (this.cache == null) return;
+        this.materialize();
+        this.cache.remove(this);
+        if (this.slot >= 0) this.cache.free(this.slot);
+        this.slot = -1;
+        this.spilled = false;
+        this.cache = null;
+    }
+    
+    /**
+     * Release phone, address, email and medical history. Unless they can be
+     * read again from the record file, they are written to the cache's spill
+     * file first. They are loaded back on next use.
+     * @param cache
+     */
+    synchronized void spill(PatientCache cache) {
+        cache.remove(this);
+        if (!this.resident || this.cache != cache) return;
+        if (this.source == null && !this.spilled) {
+            this.slot = cache.write(this.slot, this.toBytes());
+            this.spilled = true;
+        }
+        this.phone = -1;
+        this.address = null;
+        this.email = null;
+        // Replaced, not cleared: lists handed out earlier stay valid
+        this.medicalHistory = new LinkedList<Diagnosis>();
+        this.resident = false;
+    }
+    
+    /**
+     * Load the fields of a lazily loaded or spilled patient, from its spill
+     * file entry or its record block. Does nothing if they are in memory.
+     */
+    private synchronized void materialize() {
+        if (!this.resident) {
+            if (this.spilled) this.fromBytes(this.cache.read(this.slot));
+            else this.parse(this.source);
+            this.resident = true;
+        }
+        if (this.cache != null) this.cache.touch(this, this.estimateSize());
+    }
+    
+    /**
+     * Load the fields before changing them. Once changed, they can only be
+     * released through the spill file, reusing the patient's slot if any.
+     */
+    private void modify() {
+        this.materialize();
+        this.source = null;
+        this.spilled = false;
+    }
+    
+    private void parse(RecordBlock block) {
+        Map<String, String> attributeValuePairs = EMRUtil.readPatientRecord(block.read());
+        this.phone = EMRUtil.validPhone(attributeValuePairs.get(Attribute.PHONE));
+        this.address = attributeValuePairs.get(Attribute.ADDRESS);
+        this.email = EMRUtil.validEmail(attributeValuePairs.get(Attribute.EMAIL));
+        try {
+            LinkedList<Diagnosis> diagnoses = EMRUtil.readMedicalHistory(
+                    attributeValuePairs.get(Attribute.MEDICALHISTORY));
+            if (diagnoses != null) {
+                this.medicalHistory.addAll(diagnoses);
+                this.sortMedicalHistory();
+            }
+        } catch (java.text.ParseException e) {
+            throw new IllegalStateException("Invalid medical history in record at offset "
+                    + block.getOffset(), e);
+        }
+    }
+    
+    private byte[] toBytes() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(this.phone);
+            writeString(out, this.address);
+            writeString(out, this.email);
+            out.writeInt(this.medicalHistory.size());
+            for (Diagnosis d : this.medicalHistory) {
+                out.writeLong(d.getDate().getTime());
+                writeString(out, d.getInformation());
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private void fromBytes(byte[] bytes) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            this.phone = in.readInt();
+            this.address = readString(in);
+            this.email = readString(in);
+            for (int i = in.readInt(); i > 0; i--)
+                this.medicalHistory.add(new Diagnosis(new Date(in.readLong()), readString(in)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s == null) return;
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static String readString(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) return null;
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Rough number of bytes held by phone, address, email and medical history
+     */
+    private long estimateSize() {
+        long size = 64;
+        if (this.address != null) size += 48 + 2L * this.address.length();
+        if (this.email != null) size += 48 + 2L * this.email.length();
+        for (Diagnosis d : this.medicalHistory)
+            size += 112 + 2L * d.getInformation().length();
+        return size;
+    }
     
     /**
-     * Get a list of Diagnosis during the given time period
+     * Get a list of Diagnosis during the given time period. The list is a copy,
+     * safe to iterate while diagnoses are being added concurrently.
      * @param start
      * @param end
      * @return
      */
-	public LinkedList<Diagnosis> getMedicalHistory(Date start, Date end) { 
+	public synchronized LinkedList<Diagnosis> getMedicalHistory(Date start, Date end) { 
+		this.materialize();
 		LinkedList<Diagnosis> diagnoses = new LinkedList<Diagnosis>();
 		if (start == null && end == null) {
-			diagnoses = this.medicalHistory;
+			diagnoses.addAll(this.medicalHistory);
 		} else {
 			for (Diagnosis d: medicalHistory) {
 				if (d.getDate().after(start) && d.getDate().before(end)) {
@@ -74,12 +273,16 @@ public class Patient {
 	
     /**
      * Append diagnoses to Patient's existing medical history. Sort Patient's
-     * medical history afterwards.
+     * medical history afterwards. Concurrent calls are merged one at a time.
+     * The diagnosis rollup tracking this patient, if any, is updated too.
      * @param diagnoses List of diagnosis
      */
-	public void addDiagnoses(LinkedList<Diagnosis> diagnoses) {
+	public synchronized void addDiagnoses(LinkedList<Diagnosis> diagnoses) {
+		this.modify();
 		this.medicalHistory.addAll(diagnoses);
 		this.sortMedicalHistory();
+		if (this.cache != null) this.cache.touch(this, this.estimateSize());
+		if (this.rollup != null) this.rollup.add(this, diagnoses);
 	}
 	
 	/**
@@ -107,7 +310,8 @@ public class Patient {
 	 * @param end
 	 * @return
 	 */
-	public String toString(Date start, Date end) {
+	public synchronized String toString(Date start, Date end) {
+		this.materialize();
 		String format = "%-20s %-40s %n";
 		String s = "";
 		s += String.format(format, Attribute.PATIENTID, id);
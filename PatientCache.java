@@ -0,0 +1,212 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Keeps the contact details and medical histories of patients within a
+ * memory budget. Patients whose details are resident are tracked from least
+ * to most recently used, with an estimate of their size; once the budget is
+ * exceeded, {@link #evict()} spills the least recently used ones. A patient
+ * whose details are unchanged since they were read from the record file just
+ * drops them; any other patient is written to a spill file on local disk
+ * first. Spilled details are read back on next use.
+ *
+ * Every spilled patient owns a slot of the spill file, with some room to
+ * grow. A patient spilled again after a change is rewritten in place if it
+ * still fits, and moved to a new slot at the end of the file otherwise. Once
+ * the space of abandoned slots exceeds both 1 MB and the space in use, live
+ * slots are copied to a new, compact spill file.
+ *
+ * Name, birthday and ID always stay resident, as every index is keyed on
+ * them.
+ * @author VG
+ *
+ */
+public class PatientCache {
+	private final long budget;
+	private final File directory;
+	private final LinkedHashMap<Patient, Long> resident =
+			new LinkedHashMap<Patient, Long>(16, 0.75f, true);
+	private long residentSize = 0;
+	private File spillFile;
+	private RandomAccessFile spill;
+	// Offset and capacity of every slot, by slot number
+	private final Map<Integer, long[]> slots = new HashMap<Integer, long[]>();
+	private int nextSlot = 0;
+	private long end = 0;
+	private long liveBytes = 0;
+	private long deadBytes = 0;
+
+	private static final long COMPACT_MIN = 1 << 20;
+
+	/**
+	 * Constructor for patient cache.
+	 * @param budget bytes of patient details to keep resident
+	 * @param directory directory of the spill file, or null for the default
+	 * temporary-file directory
+	 */
+	public PatientCache(long budget, File directory) {
+		this.budget = budget;
+		this.directory = directory;
+	}
+
+	/**
+	 * Record that a patient's details are resident and were just used
+	 * @param patient
+	 * @param size estimated size of the details in bytes
+	 */
+	synchronized void touch(Patient patient, long size) {
+		Long previous = this.resident.put(patient, size);
+		this.residentSize += size - (previous == null ? 0 : previous);
+	}
+
+	/**
+	 * Stop tracking a patient, e.g. once spilled or deleted
+	 * @param patient
+	 */
+	synchronized void remove(Patient patient) {
+		Long previous = this.resident.remove(patient);
+		if (previous != null) this.residentSize -= previous;
+	}
+
+	/**
+	 * Spill least recently used patients until the resident ones fit in the
+	 * budget. Must not be called while holding a patient's lock.
+	 */
+	public void evict() {
+		LinkedList<Patient> victims = new LinkedList<Patient>();
+		synchronized (this) {
+			long size = this.residentSize;
+			Iterator<Map.Entry<Patient, Long>> it = this.resident.entrySet().iterator();
+			while (size > this.budget && it.hasNext()) {
+				Map.Entry<Patient, Long> entry = it.next();
+				victims.add(entry.getKey());
+				size -= entry.getValue();
+			}
+		}
+		// Spill outside the cache lock: a patient's lock is always taken first
+		for (Patient p : victims) p.spill(this);
+	}
+
+	/**
+	 * Write an entry to the spill file, in place of the slot's previous entry
+	 * if it fits
+	 * @param slot slot of the previous entry, or -1 for a new slot
+	 * @param bytes
+	 * @return slot of the entry
+	 */
+	synchronized int write(int slot, byte[] bytes) {
+		try {
+			if (this.spill == null) {
+				this.spillFile = File.createTempFile("emr", ".spill", this.directory);
+				this.spill = new RandomAccessFile(this.spillFile, "rw");
+			}
+			long[] entry = slot < 0 ? null : this.slots.get(slot);
+			if (entry == null || entry[1] < bytes.length) {
+				if (entry != null) this.release(entry);
+				if (slot < 0) slot = this.nextSlot++;
+				// Leave room for the entry to grow a little in place
+				entry = new long[] { this.end, bytes.length + bytes.length / 4 };
+				this.slots.put(slot, entry);
+				this.end += 4 + entry[1];
+				this.liveBytes += 4 + entry[1];
+			}
+			this.spill.seek(entry[0]);
+			this.spill.writeInt(bytes.length);
+			this.spill.write(bytes);
+			this.compactIfNeeded();
+			return slot;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot write spill file", e);
+		}
+	}
+
+	/**
+	 * Read an entry back from the spill file
+	 * @param slot
+	 * @return bytes of the entry
+	 */
+	synchronized byte[] read(int slot) {
+		try {
+			this.spill.seek(this.slots.get(slot)[0]);
+			byte[] bytes = new byte[this.spill.readInt()];
+			this.spill.readFully(bytes);
+			return bytes;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot read spill file", e);
+		}
+	}
+
+	/**
+	 * Give up a slot, e.g. once its patient is deleted
+	 * @param slot
+	 */
+	synchronized void free(int slot) {
+		long[] entry = this.slots.remove(slot);
+		if (entry == null) return;
+		this.release(entry);
+		try {
+			this.compactIfNeeded();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot compact spill file", e);
+		}
+	}
+
+	private void release(long[] entry) {
+		this.liveBytes -= 4 + entry[1];
+		this.deadBytes += 4 + entry[1];
+	}
+
+	/**
+	 * Copy the live slots to a new spill file once abandoned ones take more
+	 * space than they do
+	 */
+	private void compactIfNeeded() throws IOException {
+		if (this.deadBytes < COMPACT_MIN || this.deadBytes < this.liveBytes) return;
+		File compactFile = File.createTempFile("emr", ".spill", this.directory);
+		RandomAccessFile compact = new RandomAccessFile(compactFile, "rw");
+		// New offsets are applied only once every entry is copied, so the slots
+		// stay valid in the current spill file if copying fails
+		List<long[]> entries = new ArrayList<long[]>(this.slots.values());
+		long[] offsets = new long[entries.size()];
+		long offset = 0;
+		try {
+			for (int i = 0; i < offsets.length; i++) {
+				long[] entry = entries.get(i);
+				this.spill.seek(entry[0]);
+				byte[] bytes = new byte[this.spill.readInt()];
+				this.spill.readFully(bytes);
+				compact.seek(offset);
+				compact.writeInt(bytes.length);
+				compact.write(bytes);
+				offsets[i] = offset;
+				offset += 4 + entry[1];
+			}
+		} catch (IOException e) {
+			compact.close();
+			compactFile.delete();
+			throw e;
+		}
+		for (int i = 0; i < offsets.length; i++) entries.get(i)[0] = offsets[i];
+		this.end = offset;
+		this.spill.close();
+		this.spillFile.delete();
+		this.spill = compact;
+		this.spillFile = compactFile;
+		this.deadBytes = 0;
+	}
+
+	/**
+	 * Close and delete the spill file
+	 */
+	public synchronized void close() {
+		if (this.spill == null) return;
+		try {
+			this.spill.close();
+		} catch (IOException e) {
+		}
+		this.spillFile.delete();
+		this.spill = null;
+		this.slots.clear();
+		this.end = this.liveBytes = this.deadBytes = 0;
+	}
+}
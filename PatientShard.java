@@ -0,0 +1,321 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single partition of the patient set. A shard owns the patients whose
+ * (name, birthday) key hashes to it, the indexes over those patients and its
+ * own range of patient IDs: shard i of n hands out i + 1, i + 1 + n,
+ * i + 1 + 2n, ... so IDs stay unique across shards and the owning shard of
+ * any ID can be computed without a lookup.
+ * 
+ * A shard is safe for concurrent use. IDs come from an atomic counter and the
+ * name and birthday indexes hold a concurrent set per key, ordered by ID, so
+ * adding a patient to a key costs O(log k) and readers never block writers.
+ * @author VG
+ *
+ */
+public class PatientShard {
+	private static final Comparator<Patient> BY_ID = new Comparator<Patient>() {
+		@Override
+		public int compare(Patient p1, Patient p2) {
+			return Integer.compare(p1.getId(), p2.getId());
+		}
+	};
+	private final int index;
+	private final int shardCount;
+	private final AtomicInteger lastUsedId;
+	private final AtomicInteger size = new AtomicInteger();
+	private ConcurrentNavigableMap<Integer, Patient> patientsById =
+			new ConcurrentSkipListMap<Integer, Patient>();
+	private ConcurrentMap<String, IndexEntry> patientsByName =
+			new ConcurrentHashMap<String, IndexEntry>();
+	private ConcurrentNavigableMap<Date, IndexEntry> patientsByBirthday =
+			new ConcurrentSkipListMap<Date, IndexEntry>();
+
+	/**
+	 * Patients sharing an index key, ascending by ID, with their number, as
+	 * counting a skip list walks it. Changes are made under the entry's own
+	 * lock; an entry is dropped from its index once empty and marked so, so
+	 * a patient is never added to a dropped entry.
+	 */
+	@SuppressWarnings("serial")
+	private static class IndexEntry extends ConcurrentSkipListSet<Patient> {
+		private boolean dropped = false;
+		private volatile int count = 0;
+
+		IndexEntry() {
+			super(BY_ID);
+		}
+	}
+
+	/**
+	 * Constructor for patient shard.
+	 * @param index position of this shard, starting from 0
+	 * @param shardCount total number of shards
+	 */
+	public PatientShard(int index, int shardCount) {
+		this.index = index;
+		this.shardCount = shardCount;
+		this.lastUsedId = new AtomicInteger(index + 1 - shardCount);
+	}
+
+	public int getIndex() { return this.index; }
+	public int size() { return this.size.get(); }
+
+	/**
+	 * Allocate the next unused ID from this shard's ID range
+	 * @return patient ID
+	 */
+	public int nextId() {
+		return this.lastUsedId.addAndGet(this.shardCount);
+	}
+
+	/**
+	 * Add patient to this shard and its indexes
+	 * @param patient
+	 */
+	public void add(Patient patient) {
+		if (this.patientsById.putIfAbsent(patient.getId(), patient) != null)
+			return;
+		this.size.incrementAndGet();
+		index(this.patientsByName, patient.getName(), patient);
+		index(this.patientsByBirthday, patient.getBirthday(), patient);
+	}
+
+	/**
+	 * Remove patient from this shard and its indexes
+	 * @param patient
+	 * @return whether the patient was found and removed
+	 */
+	public boolean remove(Patient patient) {
+		if (patient == null || !this.patientsById.remove(patient.getId(), patient))
+			return false;
+		this.size.decrementAndGet();
+		unindex(this.patientsByName, patient.getName(), patient);
+		unindex(this.patientsByBirthday, patient.getBirthday(), patient);
+		return true;
+	}
+
+	/**
+	 * Add patients to this shard, then update each index key they share once
+	 * @param patients
+	 * @return the patients that were added, i.e. whose ID was not taken
+	 */
+	public LinkedList<Patient> addAll(Collection<Patient> patients) {
+		LinkedList<Patient> added = new LinkedList<Patient>();
+		for (Patient p : patients) {
+			if (this.patientsById.putIfAbsent(p.getId(), p) == null) added.add(p);
+		}
+		this.size.addAndGet(added.size());
+		indexAll(this.patientsByName, groupByName(added));
+		indexAll(this.patientsByBirthday, groupByBirthday(added));
+		return added;
+	}
+
+	/**
+	 * Remove patients from this shard, then update each index key they shared
+	 * once
+	 * @param patients
+	 * @return the patients that were found and removed
+	 */
+	public LinkedList<Patient> removeAll(Collection<Patient> patients) {
+		LinkedList<Patient> removed = new LinkedList<Patient>();
+		for (Patient p : patients) {
+			if (this.patientsById.remove(p.getId(), p)) removed.add(p);
+		}
+		this.size.addAndGet(-removed.size());
+		unindexAll(this.patientsByName, groupByName(removed));
+		unindexAll(this.patientsByBirthday, groupByBirthday(removed));
+		return removed;
+	}
+
+	/**
+	 * Find patient by id
+	 * @param id
+	 * @return patient, or null if not in this shard
+	 */
+	public Patient find(int id) {
+		return this.patientsById.get(id);
+	}
+
+	/**
+	 * Find the first patient (lowest ID) with given name and birthday
+	 * @param name
+	 * @param birthday
+	 * @return patient, or null if not in this shard
+	 */
+	public Patient find(String name, Date birthday) {
+		IndexEntry candidates = this.patientsByName.get(name);
+		if (candidates == null) return null;
+		for (Patient p : candidates) {
+			if (birthday.equals(p.getBirthday()))
+				return p;
+		}
+		return null;
+	}
+
+	/**
+	 * Find patients by name, ascending by ID
+	 * @param name
+	 * @return
+	 */
+	public LinkedList<Patient> findByName(String name) {
+		return copyOf(this.patientsByName.get(name));
+	}
+
+	/**
+	 * Find patients by birthday, ascending by ID
+	 * @param birthday
+	 * @return
+	 */
+	public LinkedList<Patient> findByBirthday(Date birthday) {
+		return copyOf(this.patientsByBirthday.get(birthday));
+	}
+
+	/**
+	 * Find patients born between start and end, both inclusive, ascending by ID
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public LinkedList<Patient> findByBirthday(Date start, Date end) {
+		ArrayList<Patient> results = new ArrayList<Patient>();
+		for (IndexEntry patients : this.birthdayRange(start, end).values())
+			results.addAll(patients);
+		Collections.sort(results, BY_ID);
+		return new LinkedList<Patient>(results);
+	}
+
+	/**
+	 * Count patients with given name
+	 * @param name
+	 * @return
+	 */
+	public int countByName(String name) {
+		return sizeOf(this.patientsByName.get(name));
+	}
+
+	/**
+	 * Count patients born between start and end, both inclusive
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public int countByBirthday(Date start, Date end) {
+		int count = 0;
+		for (IndexEntry patients : this.birthdayRange(start, end).values())
+			count += patients.count;
+		return count;
+	}
+
+	/**
+	 * Get every patient of this shard, ascending by ID
+	 * @return
+	 */
+	public LinkedList<Patient> getPatients() {
+		return new LinkedList<Patient>(this.patientsById.values());
+	}
+
+	/**
+	 * Add patient to the index entry for key
+	 */
+	private static <K> void index(ConcurrentMap<K, IndexEntry> index, K key,
+			Patient patient) {
+		indexAll(index, Collections.singletonMap(key, Collections.singletonList(patient)));
+	}
+
+	/**
+	 * Remove patient from the index entry for key, dropping the entry once it
+	 * is empty
+	 */
+	private static <K> void unindex(ConcurrentMap<K, IndexEntry> index, K key,
+			Patient patient) {
+		unindexAll(index, Collections.singletonMap(key, Collections.singletonList(patient)));
+	}
+
+	/**
+	 * Add each key's patients to the index entry for the key, creating it if
+	 * needed
+	 */
+	private static <K> void indexAll(ConcurrentMap<K, IndexEntry> index,
+			Map<K, List<Patient>> groups) {
+		for (Map.Entry<K, List<Patient>> group : groups.entrySet()) {
+			while (true) {
+				IndexEntry entry = index.get(group.getKey());
+				if (entry == null) {
+					entry = new IndexEntry();
+					IndexEntry previous = index.putIfAbsent(group.getKey(), entry);
+					if (previous != null) entry = previous;
+				}
+				synchronized (entry) {
+					// A dropped entry is no longer in the index: look it up again
+					if (entry.dropped) continue;
+					for (Patient p : group.getValue())
+						if (entry.add(p)) entry.count++;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove each key's patients from the index entry for the key, dropping
+	 * entries once they are empty
+	 */
+	private static <K> void unindexAll(ConcurrentMap<K, IndexEntry> index,
+			Map<K, List<Patient>> groups) {
+		for (Map.Entry<K, List<Patient>> group : groups.entrySet()) {
+			IndexEntry entry = index.get(group.getKey());
+			if (entry == null) continue;
+			synchronized (entry) {
+				for (Patient p : group.getValue())
+					if (entry.remove(p)) entry.count--;
+				if (entry.count == 0 && !entry.dropped) {
+					entry.dropped = true;
+					index.remove(group.getKey(), entry);
+				}
+			}
+		}
+	}
+
+	private static Map<String, List<Patient>> groupByName(List<Patient> patients) {
+		Map<String, List<Patient>> groups = new HashMap<String, List<Patient>>();
+		for (Patient p : patients) {
+			List<Patient> group = groups.get(p.getName());
+			if (group == null) {
+				group = new ArrayList<Patient>();
+				groups.put(p.getName(), group);
+			}
+			group.add(p);
+		}
+		return groups;
+	}
+
+	private static Map<Date, List<Patient>> groupByBirthday(List<Patient> patients) {
+		Map<Date, List<Patient>> groups = new HashMap<Date, List<Patient>>();
+		for (Patient p : patients) {
+			List<Patient> group = groups.get(p.getBirthday());
+			if (group == null) {
+				group = new ArrayList<Patient>();
+				groups.put(p.getBirthday(), group);
+			}
+			group.add(p);
+		}
+		return groups;
+	}
+
+	private NavigableMap<Date, IndexEntry> birthdayRange(Date start, Date end) {
+		if (start.after(end)) return new TreeMap<Date, IndexEntry>();
+		return this.patientsByBirthday.subMap(start, true, end, true);
+	}
+
+	private static int sizeOf(IndexEntry patients) {
+		return patients == null ? 0 : patients.count;
+	}
+
+	private static LinkedList<Patient> copyOf(Set<Patient> patients) {
+		if (patients == null) return new LinkedList<Patient>();
+		return new LinkedList<Patient>(patients);
+	}
+}
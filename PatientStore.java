@@ -0,0 +1,412 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The set of patients an EMR record works on, hash-partitioned by (name,
+ * birthday) into a number of shards. Adds, deletes and lookups by key or ID
+ * are routed to a single shard; lookups by name or birthday alone are
+ * scattered to every shard in parallel and gathered back ascending by ID,
+ * which is the order patients were kept in before sharding.
+ * 
+ * Upserts are serialized per (name, birthday) key through a fixed set of
+ * striped locks (see {@link #lockFor(String, Date)}), so concurrent adds for
+ * different patients only ever share a lock by hash collision.
+ * 
+ * With a patient cache, only the ID, name and birthday of every patient are
+ * sure to stay in memory; the rest is spilled to disk whenever
+ * {@link #evict()} finds the cache over its budget.
+ * @author VG
+ *
+ */
+public class PatientStore {
+	private static final int LOCK_STRIPES = 1024;
+	private final PatientShard[] shards;
+	private final Object[] locks = new Object[LOCK_STRIPES];
+	private volatile DiagnosisRollup rollup;
+	private final PatientCache cache;
+	private final ExecutorService executor;
+
+	/**
+	 * Constructor for patient store.
+	 * @param shardCount number of shards (at least 1)
+	 */
+	public PatientStore(int shardCount) {
+		this(shardCount, null);
+	}
+
+	/**
+	 * Constructor for a patient store keeping patients' details in a cache
+	 * @param shardCount number of shards (at least 1)
+	 * @param cache cache of patients' details, or null to keep them all in memory
+	 */
+	public PatientStore(int shardCount, PatientCache cache) {
+		this.cache = cache;
+		shardCount = Math.max(1, shardCount);
+		this.shards = new PatientShard[shardCount];
+		for (int i = 0; i < shardCount; i++)
+			this.shards[i] = new PatientShard(i, shardCount);
+		for (int i = 0; i < LOCK_STRIPES; i++)
+			this.locks[i] = new Object();
+		this.executor = shardCount == 1 ? null : Executors.newFixedThreadPool(
+				Math.min(shardCount, Runtime.getRuntime().availableProcessors()),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "emr-shard");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	public int getShardCount() { return this.shards.length; }
+
+	public int size() {
+		int size = 0;
+		for (PatientShard shard : this.shards) size += shard.size();
+		return size;
+	}
+
+	/**
+	 * Get the lock guarding the (name, birthday) key. Callers doing a
+	 * find-then-insert-or-update on a key must hold this lock for the whole
+	 * sequence.
+	 * @param name
+	 * @param birthday
+	 * @return lock object shared by every key of the same stripe
+	 */
+	public Object lockFor(String name, Date birthday) {
+		int hash = hash(name, birthday);
+		return this.locks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+	}
+
+	/**
+	 * Get the stripe of the (name, birthday) key, between 0 and the given
+	 * number of partitions. Keys of the same stripe always map to the same
+	 * partition, which lets callers split work by key without reordering the
+	 * operations on any one key.
+	 * @param name
+	 * @param birthday
+	 * @param partitions
+	 * @return partition index
+	 */
+	public int stripeOf(String name, Date birthday, int partitions) {
+		int hash = hash(name, birthday);
+		return ((hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)) % partitions;
+	}
+
+	/**
+	 * Allocate an ID for a new patient from the ID range of the shard owning
+	 * the given key
+	 * @param name
+	 * @param birthday
+	 * @return patient ID
+	 */
+	public int nextId(String name, Date birthday) {
+		return this.shardOf(name, birthday).nextId();
+	}
+
+	/**
+	 * Add patient to the shard owning its ID
+	 * @param patient
+	 */
+	public void add(Patient patient) {
+		this.shardOf(patient.getId()).add(patient);
+		if (this.cache != null) patient.setCache(this.cache);
+		DiagnosisRollup rollup = this.rollup;
+		if (rollup != null) patient.track(rollup);
+	}
+
+	/**
+	 * Add patients to the shards owning their IDs, updating the indexes of
+	 * each shard in one batch
+	 * @param patients
+	 */
+	public void addAll(Collection<Patient> patients) {
+		DiagnosisRollup rollup = this.rollup;
+		for (Map.Entry<PatientShard, List<Patient>> batch : this.groupByShard(patients).entrySet()) {
+			for (Patient patient : batch.getKey().addAll(batch.getValue())) {
+				if (this.cache != null) patient.setCache(this.cache);
+				if (rollup != null) patient.track(rollup);
+			}
+		}
+	}
+
+	/**
+	 * Remove patients from the shards owning their IDs, updating the indexes
+	 * of each shard in one batch
+	 * @param patients
+	 * @return number of patients found and removed
+	 */
+	public int removeAll(Collection<Patient> patients) {
+		int count = 0;
+		for (Map.Entry<PatientShard, List<Patient>> batch : this.groupByShard(patients).entrySet()) {
+			for (Patient patient : batch.getKey().removeAll(batch.getValue())) {
+				patient.untrack();
+				patient.removeCache();
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Remove patient from the shard owning its ID
+	 * @param patient
+	 * @return whether the patient was found and removed
+	 */
+	public boolean remove(Patient patient) {
+		if (patient == null) return false;
+		if (!this.shardOf(patient.getId()).remove(patient)) return false;
+		patient.untrack();
+		patient.removeCache();
+		return true;
+	}
+	
+	/**
+	 * Get the diagnosis rollup over every patient of the store. It is built
+	 * on first use, then kept up to date as patients are added and removed and
+	 * as diagnoses are added to them.
+	 * @return diagnosis rollup
+	 */
+	public synchronized DiagnosisRollup getRollup() {
+		if (this.rollup == null) {
+			DiagnosisRollup rollup = new DiagnosisRollup();
+			for (Patient p : this.getPatients()) {
+				p.track(rollup);
+				this.evict();
+			}
+			this.rollup = rollup;
+		}
+		return this.rollup;
+	}
+
+	/**
+	 * Find patient by id
+	 * @param id
+	 * @return patient, or null if not found
+	 */
+	public Patient find(int id) {
+		if (id < 1) return null;
+		return this.shardOf(id).find(id);
+	}
+
+	/**
+	 * Find patient by name and birthday
+	 * @param name
+	 * @param birthday
+	 * @return patient, or null if not found
+	 */
+	public Patient find(String name, Date birthday) {
+		if (name == null || birthday == null) return null;
+		return this.shardOf(name, birthday).find(name, birthday);
+	}
+
+	/**
+	 * Find patients by name across every shard
+	 * @param name
+	 * @return patients ascending by ID
+	 */
+	public LinkedList<Patient> findByName(final String name) {
+		return this.scatterGather(new ShardQuery() {
+			@Override
+			public LinkedList<Patient> run(PatientShard shard) {
+				return shard.findByName(name);
+			}
+		});
+	}
+
+	/**
+	 * Find patients by birthday across every shard
+	 * @param birthday
+	 * @return patients ascending by ID
+	 */
+	public LinkedList<Patient> findByBirthday(final Date birthday) {
+		return this.scatterGather(new ShardQuery() {
+			@Override
+			public LinkedList<Patient> run(PatientShard shard) {
+				return shard.findByBirthday(birthday);
+			}
+		});
+	}
+
+	/**
+	 * Find patients born between start and end, both inclusive, across every
+	 * shard
+	 * @param start
+	 * @param end
+	 * @return patients ascending by ID
+	 */
+	public LinkedList<Patient> findByBirthday(final Date start, final Date end) {
+		return this.scatterGather(new ShardQuery() {
+			@Override
+			public LinkedList<Patient> run(PatientShard shard) {
+				return shard.findByBirthday(start, end);
+			}
+		});
+	}
+
+	/**
+	 * Count patients with given name, from the name index
+	 * @param name
+	 * @return
+	 */
+	public long countByName(String name) {
+		long count = 0;
+		for (PatientShard shard : this.shards) count += shard.countByName(name);
+		return count;
+	}
+
+	/**
+	 * Count patients born between start and end, both inclusive, from the
+	 * birthday index
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public long countByBirthday(Date start, Date end) {
+		long count = 0;
+		for (PatientShard shard : this.shards) count += shard.countByBirthday(start, end);
+		return count;
+	}
+
+	/**
+	 * Get every patient across every shard
+	 * @return patients ascending by ID
+	 */
+	public LinkedList<Patient> getPatients() {
+		return this.scatterGather(new ShardQuery() {
+			@Override
+			public LinkedList<Patient> run(PatientShard shard) {
+				return shard.getPatients();
+			}
+		});
+	}
+
+	/**
+	 * Spill patients' details until the cache is back within its budget, if
+	 * there is a cache. Must not be called while holding a patient's lock.
+	 */
+	public void evict() {
+		if (this.cache != null) this.cache.evict();
+	}
+
+	/**
+	 * Stop the worker threads. The store can still be used afterwards, but
+	 * multi-shard queries will fail, and so will reading spilled patients.
+	 */
+	public void shutdown() {
+		if (this.executor != null) this.executor.shutdown();
+		if (this.cache != null) this.cache.close();
+	}
+
+	/**
+	 * A lookup executed independently against each shard
+	 */
+	interface ShardQuery {
+		LinkedList<Patient> run(PatientShard shard);
+	}
+
+	/**
+	 * Run query on every shard in parallel and merge the partial results
+	 * ascending by patient ID.
+	 * @param query
+	 * @return merged results
+	 */
+	LinkedList<Patient> scatterGather(final ShardQuery query) {
+		if (this.executor == null) return query.run(this.shards[0]);
+
+		List<Future<LinkedList<Patient>>> futures =
+				new ArrayList<Future<LinkedList<Patient>>>(this.shards.length);
+		for (final PatientShard shard : this.shards) {
+			futures.add(this.executor.submit(new Callable<LinkedList<Patient>>() {
+				@Override
+				public LinkedList<Patient> call() {
+					return query.run(shard);
+				}
+			}));
+		}
+		List<LinkedList<Patient>> partials =
+				new ArrayList<LinkedList<Patient>>(this.shards.length);
+		try {
+			for (Future<LinkedList<Patient>> future : futures)
+				partials.add(future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Shard query interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Shard query failed", e.getCause());
+		}
+		return mergeById(partials);
+	}
+
+	/**
+	 * k-way merge of lists each already ascending by patient ID
+	 * @param partials
+	 * @return
+	 */
+	private static LinkedList<Patient> mergeById(List<LinkedList<Patient>> partials) {
+		PriorityQueue<PeekingIterator> heads = new PriorityQueue<PeekingIterator>(
+				Math.max(1, partials.size()));
+		for (LinkedList<Patient> partial : partials) {
+			if (!partial.isEmpty()) heads.add(new PeekingIterator(partial.iterator()));
+		}
+		LinkedList<Patient> merged = new LinkedList<Patient>();
+		while (!heads.isEmpty()) {
+			PeekingIterator head = heads.poll();
+			merged.add(head.next());
+			if (head.hasNext()) heads.add(head);
+		}
+		return merged;
+	}
+
+	private static class PeekingIterator implements Comparable<PeekingIterator> {
+		private final Iterator<Patient> iterator;
+		private Patient peeked;
+
+		PeekingIterator(Iterator<Patient> iterator) {
+			this.iterator = iterator;
+			this.peeked = iterator.next();
+		}
+
+		boolean hasNext() { return this.peeked != null; }
+
+		Patient next() {
+			Patient p = this.peeked;
+			this.peeked = this.iterator.hasNext() ? this.iterator.next() : null;
+			return p;
+		}
+
+		@Override
+		public int compareTo(PeekingIterator other) {
+			return Integer.compare(this.peeked.getId(), other.peeked.getId());
+		}
+	}
+
+	private Map<PatientShard, List<Patient>> groupByShard(Collection<Patient> patients) {
+		Map<PatientShard, List<Patient>> batches = new LinkedHashMap<PatientShard, List<Patient>>();
+		for (Patient patient : patients) {
+			PatientShard shard = this.shardOf(patient.getId());
+			List<Patient> batch = batches.get(shard);
+			if (batch == null) {
+				batch = new ArrayList<Patient>();
+				batches.put(shard, batch);
+			}
+			batch.add(patient);
+		}
+		return batches;
+	}
+
+	private PatientShard shardOf(int id) {
+		return this.shards[(id - 1) % this.shards.length];
+	}
+
+	private PatientShard shardOf(String name, Date birthday) {
+		return this.shards[(hash(name, birthday) & 0x7fffffff) % this.shards.length];
+	}
+
+	private static int hash(String name, Date birthday) {
+		return 31 * (name == null ? 0 : name.hashCode())
+				+ (birthday == null ? 0 : birthday.hashCode());
+	}
+}
@@ -0,0 +1,58 @@
+import java.util.*;
+
+/**
+ * Executes a conjunctive query. Each predicate estimates its selectivity from
+ * the store's index statistics; the query is driven from the index of the
+ * most selective predicate, and the candidates it returns are filtered
+ * through every predicate.
+ * @author VG
+ *
+ */
+public class QueryPlanner {
+	private final PatientStore records;
+
+	public QueryPlanner(PatientStore records) {
+		this.records = records;
+	}
+
+	/**
+	 * Find the patients matching every predicate
+	 * @param predicates at least one predicate
+	 * @return matching patients, ascending by ID
+	 */
+	public LinkedList<Patient> execute(List<QueryPredicate> predicates) {
+		LinkedList<Patient> results = new LinkedList<Patient>();
+		if (predicates.isEmpty()) return results;
+		
+		// Order predicates from most to least selective
+		final Map<QueryPredicate, Long> estimates = new HashMap<QueryPredicate, Long>();
+		for (QueryPredicate predicate : predicates)
+			estimates.put(predicate, predicate.estimate(this.records));
+		List<QueryPredicate> plan = new ArrayList<QueryPredicate>(predicates);
+		Collections.sort(plan, new Comparator<QueryPredicate>() {
+			@Override
+			public int compare(QueryPredicate p1, QueryPredicate p2) {
+				return Long.compare(estimates.get(p1), estimates.get(p2));
+			}
+		});
+		QueryPredicate driver = plan.get(0);
+		if (estimates.get(driver) == 0) return results;
+		
+		// Drive from the most selective index, filter the rest cheapest first
+		List<QueryPredicate> filters = plan.subList(driver.isIndexed() ? 1 : 0,
+				plan.size());
+		for (Patient p : driver.lookup(this.records)) {
+			boolean matches = true;
+			for (QueryPredicate predicate : filters) {
+				if (!predicate.matches(p)) {
+					matches = false;
+					break;
+				}
+			}
+			if (matches) results.add(p);
+			// Filters may have loaded spilled patients back in
+			this.records.evict();
+		}
+		return results;
+	}
+}
@@ -0,0 +1,238 @@
+import java.util.*;
+
+/**
+ * A single condition of a query instruction, such as "name Mary Beor" or
+ * "birthday 1-1-1940 to 31-12-1950". Predicates that have an index behind
+ * them can estimate how many patients they match and look those patients up
+ * directly; every predicate can test a single patient. QueryPlanner combines
+ * them into a conjunctive query.
+ * @author VG
+ *
+ */
+public abstract class QueryPredicate {
+	/**
+	 * Estimate how many patients match, from index statistics only
+	 * @param records
+	 * @return estimated number of matches
+	 */
+	public abstract long estimate(PatientStore records);
+
+	/**
+	 * Get the patients that may match, ascending by ID. Indexed predicates
+	 * return exactly their matches; others return every patient.
+	 * @param records
+	 * @return candidate patients
+	 */
+	public abstract LinkedList<Patient> lookup(PatientStore records);
+
+	/**
+	 * Test whether a single patient matches
+	 * @param patient
+	 * @return
+	 */
+	public abstract boolean matches(Patient patient);
+
+	/**
+	 * Whether lookup returns exactly the matching patients, so they need not
+	 * be tested again
+	 * @return
+	 */
+	public boolean isIndexed() { return true; }
+
+	/**
+	 * Patient ID equals id
+	 */
+	public static class ById extends QueryPredicate {
+		private final int id;
+
+		public ById(int id) { this.id = id; }
+
+		@Override
+		public long estimate(PatientStore records) {
+			return records.find(this.id) == null ? 0 : 1;
+		}
+
+		@Override
+		public LinkedList<Patient> lookup(PatientStore records) {
+			LinkedList<Patient> results = new LinkedList<Patient>();
+			Patient patient = records.find(this.id);
+			if (patient != null) results.add(patient);
+			return results;
+		}
+
+		@Override
+		public boolean matches(Patient patient) {
+			return patient.getId() == this.id;
+		}
+	}
+
+	/**
+	 * Patient ID is one of a list of IDs
+	 */
+	public static class ByIds extends QueryPredicate {
+		private final TreeSet<Integer> ids;
+
+		public ByIds(Collection<Integer> ids) { this.ids = new TreeSet<Integer>(ids); }
+
+		@Override
+		public long estimate(PatientStore records) {
+			return this.ids.size();
+		}
+
+		@Override
+		public LinkedList<Patient> lookup(PatientStore records) {
+			LinkedList<Patient> results = new LinkedList<Patient>();
+			for (int id : this.ids) {
+				Patient patient = records.find(id);
+				if (patient != null) results.add(patient);
+			}
+			return results;
+		}
+
+		@Override
+		public boolean matches(Patient patient) {
+			return this.ids.contains(patient.getId());
+		}
+	}
+
+	/**
+	 * Patient name equals name
+	 */
+	public static class ByName extends QueryPredicate {
+		private final String name;
+
+		public ByName(String name) { this.name = name; }
+
+		@Override
+		public long estimate(PatientStore records) {
+			return records.countByName(this.name);
+		}
+
+		@Override
+		public LinkedList<Patient> lookup(PatientStore records) {
+			return records.findByName(this.name);
+		}
+
+		@Override
+		public boolean matches(Patient patient) {
+			return this.name.equals(patient.getName());
+		}
+	}
+
+	/**
+	 * Patient birthday between start and end, both inclusive
+	 */
+	public static class ByBirthday extends QueryPredicate {
+		private final Date start;
+		private final Date end;
+
+		public ByBirthday(Date start, Date end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public long estimate(PatientStore records) {
+			return records.countByBirthday(this.start, this.end);
+		}
+
+		@Override
+		public LinkedList<Patient> lookup(PatientStore records) {
+			if (this.start.equals(this.end))
+				return records.findByBirthday(this.start);
+			return records.findByBirthday(this.start, this.end);
+		}
+
+		@Override
+		public boolean matches(Patient patient) {
+			Date birthday = patient.getBirthday();
+			return !birthday.before(this.start) && !birthday.after(this.end);
+		}
+	}
+
+	/**
+	 * Patient has a diagnosis with the given term, within the medical history
+	 * window if one is given. There is no index on diagnoses, so this
+	 * predicate is only used to filter candidates found by another one unless
+	 * it is the only predicate of the query.
+	 */
+	public static class ByDiagnosis extends QueryPredicate {
+		private final String term;
+		private final Date start;
+		private final Date end;
+
+		/**
+		 * @param term diagnosis information, compared ignoring case and spacing
+		 * @param start start of the window (exclusive), or null
+		 * @param end end of the window (exclusive), or null
+		 */
+		public ByDiagnosis(String term, Date start, Date end) {
+			this.term = EMRUtil.normalizeTerm(term);
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public long estimate(PatientStore records) {
+			return records.size();
+		}
+
+		@Override
+		public boolean isIndexed() { return false; }
+
+		@Override
+		public LinkedList<Patient> lookup(PatientStore records) {
+			return records.getPatients();
+		}
+
+		@Override
+		public boolean matches(Patient patient) {
+			LinkedList<Diagnosis> diagnoses = this.start != null && this.end != null
+					? patient.getMedicalHistory(this.start, this.end)
+					: patient.getMedicalHistory(null, null);
+			for (Diagnosis d : diagnoses) {
+				if (this.term.equals(EMRUtil.normalizeTerm(d.getInformation())))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Patient has no diagnosis with the given term, or no diagnosis at all if
+	 * no term is given. Like ByDiagnosis, it has no index behind it.
+	 */
+	public static class WithoutDiagnosis extends QueryPredicate {
+		private final String term;
+
+		/**
+		 * @param term diagnosis information, compared ignoring case and spacing,
+		 * or null for any diagnosis
+		 */
+		public WithoutDiagnosis(String term) {
+			this.term = term == null ? null : EMRUtil.normalizeTerm(term);
+		}
+
+		@Override
+		public long estimate(PatientStore records) {
+			return records.size();
+		}
+
+		@Override
+		public boolean isIndexed() { return false; }
+
+		@Override
+		public LinkedList<Patient> lookup(PatientStore records) {
+			return records.getPatients();
+		}
+
+		@Override
+		public boolean matches(Patient patient) {
+			for (Diagnosis d : patient.getMedicalHistory(null, null)) {
+				if (this.term == null || this.term.equals(EMRUtil.normalizeTerm(d.getInformation())))
+					return false;
+			}
+			return true;
+		}
+	}
+}
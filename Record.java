@@ -1,5 +1,6 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.text.ParseException;
 import java.util.regex.Pattern;
 
@@ -13,7 +14,24 @@ import java.util.regex.Pattern;
 
 public class Record {
 	private LinkedList<Patient> patients = new LinkedList<Patient>();
-	private int lastUsedId = 0;
+	private final RecordOptions options;
+	private final PatientStore records;
+	private File liveOutputFile;
+	private Deduplicator deduplicator;
+	private LinkedList<Map<String, String>> addBlock;
+	
+	private static final Comparator<Patient> REPORT_ORDER = new Comparator<Patient>() {
+		@Override
+		public int compare(Patient p1, Patient p2) {
+			int c = p1.getBirthday().compareTo(p2.getBirthday());
+			if (c == 0) c = p1.getName().compareTo(p2.getName());
+			if (c == 0) c = Integer.compare(p1.getId(), p2.getId());
+			return c;
+		}
+	};
+	private ExecutorService ingestExecutor;
+	// Add instructions collected per ingest thread before they are applied
+	private static final int ADD_BATCH_SIZE = 4096;
 	
 	/**
 	 * This is a class constructors for report. Upon creation, it read, load, and
@@ -29,34 +47,313 @@ public class Record {
 	public Record(File medicalRecordFile, File instructionFile,
 			File outputFile, File reportFile) throws FileNotFoundException,
 			java.text.ParseException {
-		LinkedList<Patient> records = createPatientRecord(medicalRecordFile);
-		if (reportFile.exists()) reportFile.delete();
-		this.executeInstructions(instructionFile, reportFile, records);
-		this.printOutput(outputFile);
+		this(medicalRecordFile, instructionFile, outputFile, reportFile,
+				new RecordOptions());
+	}
+	
+	/**
+	 * Same as {@link #Record(File, File, File, File)} with tunable settings,
+	 * e.g. the number of shards the patient set is split into. With a run
+	 * cache, nothing is loaded or executed if the cache holds intact results
+	 * for the same inputs.
+	 * @param medicalRecordFile
+	 * @param instructionFile
+	 * @param outputFile
+	 * @param reportFile
+	 * @param options
+	 * @throws FileNotFoundException
+	 * @throws java.text.ParseException
+	 */
+	public Record(File medicalRecordFile, File instructionFile,
+			File outputFile, File reportFile, RecordOptions options)
+			throws FileNotFoundException, java.text.ParseException {
+		this.options = options;
+		this.records = this.createPatientStore(options);
+		try {
+			RunCache runCache = options.getRunCache();
+			String key = null;
+			if (runCache != null) {
+				key = runCache.key(medicalRecordFile, instructionFile, outputFile,
+						reportFile, options);
+				if (runCache.reuse(key, outputFile, reportFile)) return;
+			}
+			this.createPatientRecord(medicalRecordFile, this.records);
+			ReportFile report = new ReportFile(reportFile);
+			report.clear();
+			this.appendDuplicateReport(report);
+			this.executeInstructions(instructionFile, report, this.records);
+			this.printOutput(outputFile);
+			if (runCache != null) runCache.store(key, outputFile, reportFile);
+		} finally {
+			this.close();
+		}
+	}
+	
+	/**
+	 * Load a medical record file and keep its patients in memory without
+	 * executing any instruction. Instructions are then fed in through
+	 * {@link #executeInstructions(Scanner, File)} and the output file is
+	 * rewritten on every save. Used by RecordWatcher; {@link #close()} must be
+	 * called once done.
+	 * @param medicalRecordFile
+	 * @param outputFile
+	 * @param options
+	 * @throws FileNotFoundException
+	 * @throws java.text.ParseException
+	 */
+	Record(File medicalRecordFile, File outputFile, RecordOptions options)
+			throws FileNotFoundException, java.text.ParseException {
+		this.options = options;
+		this.records = this.createPatientStore(options);
+		this.liveOutputFile = outputFile;
+		try {
+			this.createPatientRecord(medicalRecordFile, this.records);
+		} catch (RuntimeException e) {
+			this.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Create an empty patient store, with a patient cache if the options set
+	 * a memory budget
+	 * @param options
+	 * @return
+	 */
+	private PatientStore createPatientStore(RecordOptions options) {
+		if (options.getMemoryBudget() == 0)
+			return new PatientStore(options.getShardCount());
+		return new PatientStore(options.getShardCount(), new PatientCache(
+				options.getMemoryBudget(), options.getSpillDirectory()));
+	}
+	
+	/**
+	 * Execute the instructions read from scanner against the loaded patients
+	 * and append query results to the given report. An add block left open
+	 * at the end of scanner is applied as it is.
+	 * @param scanner instructions, one per line
+	 * @param report
+	 * @throws java.text.ParseException
+	 */
+	void executeInstructions(Scanner scanner, Report report)
+			throws java.text.ParseException {
+		this.executeInstructions(scanner, report, false);
+	}
+	
+	/**
+	 * Execute the instructions read from scanner against the loaded patients
+	 * and append query results to the given report.
+	 * @param scanner instructions, one per line
+	 * @param report
+	 * @param more whether more instructions will follow in a later call, in
+	 * which case an add block left open at the end of scanner is carried over
+	 * to that call
+	 * @throws java.text.ParseException
+	 */
+	void executeInstructions(Scanner scanner, Report report, boolean more)
+			throws java.text.ParseException {
+		this.executeInstructions(scanner, report, this.records, more);
+	}
+	
+	/**
+	 * Append the groups of likely duplicate patients found while loading the
+	 * record file to the report, each as the first patient of the group with
+	 * the medical histories of the whole group combined.
+	 * @param report
+	 */
+	void appendDuplicateReport(Report report) {
+		if (this.deduplicator == null) return;
+		String s = "";
+		for (LinkedList<Patient> group : this.deduplicator.getDuplicates()) {
+			String ids = "";
+			Patient first = group.getFirst();
+			Patient combined = new Patient(first.getId(), first.getName(),
+					first.getBirthday(), first.getPhone(), first.getAddress(),
+					first.getEmail(), null);
+			for (Patient p : group) {
+				ids += (ids.isEmpty() ? "" : ", ") + p.getId();
+				combined.addDiagnoses(p.getMedicalHistory());
+				this.records.evict();
+			}
+			s += "---------------------  duplicates patient " + ids 
+					+ "  ---------------------\n\n";
+			s += combined.toString() + "\n";
+			s += this.getQueryResultFooter(null) + "\n";
+		}
+		this.deduplicator = null;
+		if (s.isEmpty()) return;
+		try {
+			report.append(s);
+		} catch (Exception e) {
+			System.out.println("Report file not found!");
+		}
+	}
+	
+	/**
+	 * Stop the worker threads used for shards and concurrent adds
+	 */
+	void close() {
+		this.records.shutdown();
+		if (this.ingestExecutor != null) this.ingestExecutor.shutdown();
 	}
 	
 	/**
 	 * Parse instruction file to a set of command data pairs then execute them.
+	 * The file may be gzip or blocked gzip compressed.
 	 * @param instructionFile File that contains instructions
-	 * @param reportFile File to write query results to
-	 * @param records List of Patient the instructions are ran against
+	 * @param report Report to write query results to
+	 * @param records Patient store the instructions are ran against
 	 * @throws FileNotFoundException
 	 * @throws java.text.ParseException
 	 */
-	private void executeInstructions(File instructionFile, File reportFile,
-			LinkedList<Patient> records) throws FileNotFoundException,
+	private void executeInstructions(File instructionFile, Report report,
+			PatientStore records) throws FileNotFoundException,
 			java.text.ParseException {
-		Scanner scanner = new Scanner(instructionFile);
+		Scanner scanner = this.openScanner(instructionFile);
+		try {
+			this.executeInstructions(scanner, report, records);
+			this.checkScanner(scanner);
+		} finally {
+			scanner.close();
+		}
+	}
+	
+	/**
+	 * Parse instructions to a set of command data pairs then execute them.
+	 * When more than one ingest thread is configured, runs of consecutive add
+	 * instructions are collected and applied concurrently, a few thousand per
+	 * thread at a time and before the next instruction of any other kind,
+	 * evicting patients over the memory budget after each batch. An "add"
+	 * line without data opens a block of patients, one per line, closed by an
+	 * "end" line or the end of the instructions; the block is applied as a
+	 * whole.
+	 * @param scanner Scanner over the instructions
+	 * @param report Report to write query results to
+	 * @param records Patient store the instructions are ran against
+	 * @throws java.text.ParseException
+	 */
+	private void executeInstructions(Scanner scanner, Report report,
+			PatientStore records) throws java.text.ParseException {
+		this.executeInstructions(scanner, report, records, false);
+	}
+	
+	/**
+	 * Parse instructions to a set of command data pairs then execute them,
+	 * continuing first any add block left open by the previous call.
+	 * @param scanner Scanner over the instructions
+	 * @param report Report to write query results to
+	 * @param records Patient store the instructions are ran against
+	 * @param more whether to keep an add block open at the end of scanner
+	 * @throws java.text.ParseException
+	 */
+	private void executeInstructions(Scanner scanner, Report report,
+			PatientStore records, boolean more) throws java.text.ParseException {
 		String command = "", data = "";
+		LinkedList<Map<String, String>> pendingAdds = new LinkedList<Map<String, String>>();
+		if (this.addBlock != null && !this.readAddBlock(scanner, records, more)) return;
 		while (scanner.hasNext()) {
 			command = scanner.next();
 			if (scanner.hasNextLine()) data = scanner.nextLine();
-			this.execute(command,
-					this.readInstructionData(command, data.trim()), 
-					reportFile, records);
+			if (command.equals(Command.ADD) && data.trim().isEmpty()) {
+				this.executeAdds(pendingAdds, records);
+				this.addBlock = new LinkedList<Map<String, String>>();
+				if (!this.readAddBlock(scanner, records, more)) return;
+				command = "";
+				data = "";
+				continue;
+			}
+			Map<String, String> instructionData = this.readInstructionData(command,
+					data.trim());
+			if (this.options.getIngestThreads() > 1 && command.equals(Command.ADD)) {
+				pendingAdds.add(instructionData);
+				// Bound the memory held by a long run of adds
+				if (pendingAdds.size() >= ADD_BATCH_SIZE * this.options.getIngestThreads())
+					this.executeAdds(pendingAdds, records);
+			} else {
+				this.executeAdds(pendingAdds, records);
+				this.execute(command, instructionData, report, records);
+				records.evict();
+			}
 			command = "";
 			data = "";
 		}
+		this.executeAdds(pendingAdds, records);
+	}
+	
+	/**
+	 * Apply a batch of add instructions with the configured number of ingest
+	 * threads, then clear the batch. Instructions are partitioned by the lock
+	 * stripe of their (name, birthday) key, so every instruction for the same
+	 * patient runs on the same thread and in batch order. IDs of new patients
+	 * are allocated up front in batch order, so they do not depend on thread
+	 * scheduling.
+	 * @param adds add instructions in instruction file order
+	 * @param records
+	 * @throws ParseException
+	 */
+	private void executeAdds(LinkedList<Map<String, String>> adds,
+			final PatientStore records) throws ParseException {
+		if (adds.isEmpty()) return;
+		int threads = Math.min(this.options.getIngestThreads(), adds.size());
+		List<LinkedList<Map<String, String>>> partitions =
+				new ArrayList<LinkedList<Map<String, String>>>(threads);
+		for (int i = 0; i < threads; i++)
+			partitions.add(new LinkedList<Map<String, String>>());
+		final Map<String, Integer> ids = new HashMap<String, Integer>();
+		for (Map<String, String> instructionData : adds) {
+			// Missing or unparsable birthdays fail in executeAdd; any partition will do
+			int partition = 0;
+			String name = instructionData.get(Attribute.NAME);
+			if (instructionData.get(Attribute.BIRTHDAY) != null) {
+				try {
+					Date birthday = EMRUtil.stringToDate(instructionData.get(Attribute.BIRTHDAY));
+					partition = records.stripeOf(name, birthday, threads);
+					// The first valid add of a key not yet stored creates the patient
+					String key = name + "|" + birthday.getTime();
+					if (!ids.containsKey(key) && this.validPatientRecord(instructionData)
+							&& records.find(name, birthday) == null)
+						ids.put(key, records.nextId(EMRUtil.validName(name), birthday));
+				} catch (ParseException e) {
+				}
+			}
+			partitions.get(partition).add(instructionData);
+		}
+		adds.clear();
+		
+		if (this.ingestExecutor == null)
+			this.ingestExecutor = Executors.newFixedThreadPool(
+					this.options.getIngestThreads(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "emr-ingest");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(threads);
+		for (final LinkedList<Map<String, String>> partition : partitions) {
+			futures.add(this.ingestExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws ParseException {
+					for (Map<String, String> instructionData : partition)
+						executeAdd(instructionData, records, ids);
+					return null;
+				}
+			}));
+		}
+		try {
+			for (Future<Void> future : futures) future.get();
+			records.evict();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Add instructions interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ParseException)
+				throw (ParseException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("Add instructions failed", e.getCause());
+		}
 	}
 	
 	/**
@@ -64,74 +361,155 @@ public class Record {
 	 * "delete" and data pairs set {name=Jeff Vader, birthday=08=09=1901}
 	 * @param command
 	 * @param data
-	 * @param reportFile
+	 * @param report
 	 * @param records
 	 * @throws java.text.ParseException
 	 */
 	private void execute(String command, Map<String, String> data, 
-			File reportFile, LinkedList<Patient> records)
+			Report report, PatientStore records)
 			throws java.text.ParseException {
 		if (command.equals(Command.SAVE)) executeSave(records);
-		else if (command.equals(Command.QUERY)) executeQuery(data, reportFile, records);
+		else if (command.equals(Command.QUERY)) executeQuery(data, report, records);
 		else if (command.equals(Command.ADD)) executeAdd(data, records);
 		else if (command.equals(Command.DELETE)) executeDelete(data, records);
+		else if (command.equals(Command.AGGREGATE)) executeAggregate(data, report, records);
 		else System.out.println("Invalid command!");
 	}
 
-	private void executeSave(LinkedList<Patient> records) {
-		patients.addAll(records);
+	private void executeSave(PatientStore records) {
+		if (this.liveOutputFile == null) {
+			patients.addAll(records.getPatients());
+			return;
+		}
+		// Each live save rewrites the output file with the store as it is now
+		patients = new LinkedList<Patient>(records.getPatients());
+		this.writeOutput(this.liveOutputFile);
 	}
 	
 	/**
-	 * Perform query by patient name or birthday, patient ID then append the result
-	 * to report file. All query results are displayed in ascending order or patient
-	 * name and birthday.
+	 * Perform query by patient name, birthday, patient ID, diagnosis term or any
+	 * combination of them, then append the result to report file. Patients must
+	 * match every condition given; the query is driven from the most selective
+	 * one (see QueryPlanner). All query results are displayed in ascending order
+	 * or patient name and birthday. A query by patient ID alone is only reported
+	 * if the patient exists.
 	 * @param instructionData
-	 * @param reportFile
+	 * @param report
 	 * @param records
 	 * @throws java.text.ParseException
 	 */
-	private void executeQuery(Map<String, String> instructionData, File reportFile,
-			LinkedList<Patient> records) throws java.text.ParseException {
+	private void executeQuery(Map<String, String> instructionData, Report report,
+			PatientStore records) throws java.text.ParseException {
+		LinkedList<QueryPredicate> predicates = this.readQueryPredicates(instructionData);
+		if (predicates.isEmpty()) return;
+		
+		LinkedList<Patient> results = new QueryPlanner(records).execute(predicates);
+		if (results.isEmpty() && predicates.size() == 1
+				&& predicates.getFirst() instanceof QueryPredicate.ById)
+			return;
+		this.appendQueryResult(results, report, instructionData);
+	}
+	
+	/**
+	 * Build the conditions of a query. Birthday is either a single date or a
+	 * range, e.g: "1-1-1940 to 31-12-1950". A diagnosis term only counts within
+	 * the query's start and end dates when both are given.
+	 * @param instructionData
+	 * @return query predicates
+	 * @throws java.text.ParseException
+	 */
+	private LinkedList<QueryPredicate> readQueryPredicates(
+			Map<String, String> instructionData) throws java.text.ParseException {
+		LinkedList<QueryPredicate> predicates = new LinkedList<QueryPredicate>();
+		
+		if (instructionData.get(Attribute.PATIENTID) != null)
+			predicates.add(new QueryPredicate.ById(Integer.parseInt(
+					instructionData.get(Attribute.PATIENTID).trim())));
 		
-		// Query by name
 		if (instructionData.get(Attribute.NAME) != null)
-			this.appendQueryResult(this.findPatient(
-					instructionData.get(Attribute.NAME), records), 
-					reportFile, instructionData);
- 		
-		// Query by birthday
+			predicates.add(new QueryPredicate.ByName(instructionData.get(Attribute.NAME)));
+		
 		if (instructionData.get(Attribute.BIRTHDAY) != null) {
-			Date birthday = EMRUtil.stringToDate(instructionData
-					.get(Attribute.BIRTHDAY));
-			this.appendQueryResult(this.findPatient(birthday, records), 
-					reportFile, instructionData);
+			String[] range = instructionData.get(Attribute.BIRTHDAY).split("\\s+to\\s+", 2);
+			Date start = EMRUtil.stringToDate(range[0].trim());
+			Date end = range.length == 2 ? EMRUtil.stringToDate(range[1].trim()) : start;
+			predicates.add(new QueryPredicate.ByBirthday(start, end));
 		}
 		
-		// Query by id
-		if (instructionData.get(Attribute.PATIENTID) != null) {
-			int id = Integer.parseInt(instructionData.get(Attribute.PATIENTID));
-			if (this.findPatient(id, records) != null) {
-				LinkedList<Patient> results = new LinkedList<Patient>();
-				System.out.println();
-				results.add(this.findPatient(id, records));
-				this.appendQueryResult(results, reportFile, instructionData);
+		if (instructionData.get(Attribute.DIAGNOSIS) != null) {
+			Date start = null, end = null;
+			if (instructionData.get("start") != null && instructionData.get("end") != null) {
+				start = EMRUtil.stringToDate(instructionData.get("start"));
+				end = EMRUtil.stringToDate(instructionData.get("end"));
 			}
+			predicates.add(new QueryPredicate.ByDiagnosis(
+					instructionData.get(Attribute.DIAGNOSIS), start, end));
 		}
+		return predicates;
 	}
 	
 	/**
-	 * Append a formatted string to existing report file
+	 * Count diagnoses per period and append the result to the report: for each
+	 * diagnosis term and period, the number of diagnoses and of distinct
+	 * patients, then the total number of diagnoses in the window. E.g:
+	 * "aggregate diagnosis flu; 01-01-2012; 31-12-2012; month". Without a
+	 * diagnosis every term is counted. Start and end dates are inclusive and
+	 * optional; the period is day, month (default) or year. Diagnosis counts
+	 * are limited to the window, distinct patients cover each whole period.
+	 * Answered from the store's diagnosis rollup, not from patient records.
+	 * @param instructionData
+	 * @param report
+	 * @param records
+	 * @throws java.text.ParseException
+	 */
+	private void executeAggregate(Map<String, String> instructionData, Report report,
+			PatientStore records) throws java.text.ParseException {
+		String term = instructionData.get(Attribute.DIAGNOSIS);
+		Date start = null, end = null;
+		if (instructionData.get("start") != null)
+			start = EMRUtil.stringToDate(instructionData.get("start"));
+		if (instructionData.get("end") != null)
+			end = EMRUtil.stringToDate(instructionData.get("end"));
+		DiagnosisRollup.Granularity granularity = DiagnosisRollup.Granularity.MONTH;
+		if (instructionData.get("per") != null)
+			granularity = DiagnosisRollup.Granularity.valueOf(
+					instructionData.get("per").toUpperCase(Locale.ENGLISH));
+		DiagnosisRollup rollup = records.getRollup();
+		
+		// build aggregate command string
+		String instruction = "";
+		if (term != null) instruction += Attribute.DIAGNOSIS + " " + term + "; ";
+		if (start != null) instruction += instructionData.get("start") + "; ";
+		if (end != null) instruction += instructionData.get("end") + "; ";
+		instruction += granularity.name().toLowerCase(Locale.ENGLISH);
+		
+		String format = "%-20s %-12s %-10s %-10s %n";
+		String s = "";
+		s += "---------------------  " + "aggregate " + instruction 
+				+ "  ---------------------\n\n";
+		s += String.format(format, "term", "period", "diagnoses", "patients");
+		for (DiagnosisRollup.Row row : rollup.rows(term, start, end, granularity))
+			s += String.format(format, row.getTerm(), row.getPeriod(),
+					row.getDiagnoses(), row.getPatients());
+		s += String.format(format, "total", "", rollup.count(term, start, end), "");
+		s += "\n" + this.getQueryResultFooter(instructionData) + "\n";
+		try {
+			report.append(s);
+		} catch (Exception e) {
+			System.out.println("Report file not found!");
+		}
+	}
+	
+	/**
+	 * Append a formatted string to existing report
 	 * @param results
-	 * @param reportFile
+	 * @param report
 	 * @param instructionData
 	 */
-	private void appendQueryResult(LinkedList<Patient> results, File reportFile,
+	private void appendQueryResult(LinkedList<Patient> results, Report report,
 			Map<String, String> instructionData) {
 		try {
-			PrintWriter out = new PrintWriter(new FileWriter(reportFile, true));
-			out.print(this.getQueryResult(results, instructionData));
-			out.close();
+			report.append(this.getQueryResult(results, instructionData));
 		} catch (Exception e) {
 			System.out.println("Report file not found!");
 		}
@@ -140,7 +518,8 @@ public class Record {
 	/**
 	 * Get a formatted string ready for printing given a list of patients result
 	 * and instructions. All query results are displayed in ascending order or patient
-	 * name and birthday. Generate header and footer.
+	 * birthday and name. When the query has a limit and/or offset, only that page
+	 * of results is sorted and printed. Generate header and footer.
 	 * @param results a list patient as a result of querying
 	 * @param instructionData instructions used to generate the results
 	 * @throws ParseException
@@ -149,8 +528,13 @@ public class Record {
 			Map<String, String> instructionData) throws ParseException {
 		String s = "";
 		
-		// Sort patient results
-		this.sortPatients(results);
+		// Sort patient results, keeping only the requested page
+		int offset = 0, limit = -1;
+		if (instructionData.get("offset") != null)
+			offset = Math.max(0, Integer.parseInt(instructionData.get("offset").trim()));
+		if (instructionData.get("limit") != null)
+			limit = Math.max(0, Integer.parseInt(instructionData.get("limit").trim()));
+		results = this.selectPage(results, offset, limit);
 		
 		// Build result string if there are date limits on medical history
 		if ((instructionData.get("start") != null) && (instructionData.get("end") != null)) {
@@ -159,14 +543,20 @@ public class Record {
 			// Print only if date limits are valid and end date is not earlier than start date
 			if (start.before(end)) {
 				s += this.getQueryResultHeader(instructionData) + "\n";
-				for (Patient p : results) s += p.toString(start, end) + "\n";
+				for (Patient p : results) {
+					s += p.toString(start, end) + "\n";
+					this.records.evict();
+				}
 				s += this.getQueryResultFooter(instructionData) + "\n";
 			}
 			
 		// Build result string if no date limits on medical history
 		} else {
 			s += this.getQueryResultHeader(instructionData) + "\n";
-			for (Patient p : results) s += p.toString() + "\n";
+			for (Patient p : results) {
+				s += p.toString() + "\n";
+				this.records.evict();
+			}
 			s += this.getQueryResultFooter(instructionData) + "\n";
 		}
 		return s;
@@ -175,16 +565,23 @@ public class Record {
 	private String getQueryResultHeader(Map<String, String> instructionData) {
 		String instruction = "";
 		
-		// build query command string
+		// build query command string, conditions separated by "; "
 		if (instructionData.get(Attribute.PATIENTID) != null) 
 			instruction += "patient " 
-						+ Integer.parseInt(instructionData.get(Attribute.PATIENTID));
+						+ Integer.parseInt(instructionData.get(Attribute.PATIENTID).trim());
 		if (instructionData.get(Attribute.NAME) != null) 
-			instruction += Attribute.NAME + " " 
+			instruction += (instruction.isEmpty() ? "" : "; ") + Attribute.NAME + " " 
 						+ instructionData.get(Attribute.NAME);
 		if (instructionData.get(Attribute.BIRTHDAY) != null) 
-			instruction += Attribute.BIRTHDAY + " " 
+			instruction += (instruction.isEmpty() ? "" : "; ") + Attribute.BIRTHDAY + " " 
 						+ instructionData.get(Attribute.BIRTHDAY);
+		if (instructionData.get(Attribute.DIAGNOSIS) != null) 
+			instruction += (instruction.isEmpty() ? "" : "; ") + Attribute.DIAGNOSIS + " " 
+						+ instructionData.get(Attribute.DIAGNOSIS);
+		if (instructionData.get("limit") != null) 
+			instruction += "; limit " + instructionData.get("limit");
+		if (instructionData.get("offset") != null) 
+			instruction += "; offset " + instructionData.get("offset");
 		if (instructionData.get("start") != null && instructionData.get("start") != null) 
 			instruction += "; " + instructionData.get("start")
 						+ "; " + instructionData.get("end")
@@ -205,18 +602,30 @@ public class Record {
 	}
 	
 	/**
-	 * Delete a record from given list by name and birthday OR by patient ID
+	 * Delete a record from given list by name and birthday OR by patient ID.
+	 * Several patients can be deleted at once by a list of patient IDs, a
+	 * birthday range, or the absence of a diagnosis, e.g:
+	 * "delete patientID 3, 5, 8", "delete birthday 1-1-1900 to 31-12-1920",
+	 * "delete without diagnosis flu" or, for patients without any diagnosis,
+	 * "delete without diagnosis". Conditions can be combined; patients must
+	 * match all of them. A single birthday without a name deletes nothing.
 	 * @param instructionData
 	 * @param records
 	 * @throws java.text.ParseException
 	 */
 	private void executeDelete(Map<String, String> instructionData,
-			LinkedList<Patient> records) throws java.text.ParseException {
+			PatientStore records) throws java.text.ParseException {
+		
+		// Delete every patient matching the conditions in one batch
+		if (this.isBulkDelete(instructionData)) {
+			LinkedList<QueryPredicate> predicates = this.readDeletePredicates(instructionData);
+			if (predicates == null) System.out.println("Invalid delete condition!");
+			else records.removeAll(new QueryPlanner(records).execute(predicates));
 		
 		// Delete by id
-		if (instructionData.get(Attribute.PATIENTID) != null) {
+		} else if (instructionData.get(Attribute.PATIENTID) != null) {
 			int id = Integer.parseInt(instructionData.get(Attribute.PATIENTID));
-			records.remove(this.findPatient(id, records));
+			records.remove(records.find(id));
 		
 		// Delete by name & birthday
 		} else if (instructionData.get(Attribute.NAME) != null
@@ -224,39 +633,177 @@ public class Record {
 			String name = instructionData.get(Attribute.NAME);
 			Date birthday = EMRUtil.stringToDate(instructionData
 					.get(Attribute.BIRTHDAY));
-			records.remove(this.findPatient(name, birthday, records));
+			records.remove(records.find(name, birthday));
 		}
 	}
 	
+	/**
+	 * Whether a delete instruction names a set of patients rather than a
+	 * single one: a list of IDs, a diagnosis absence, or a birthday range.
+	 */
+	private boolean isBulkDelete(Map<String, String> instructionData) {
+		String id = instructionData.get(Attribute.PATIENTID);
+		String birthday = instructionData.get(Attribute.BIRTHDAY);
+		if (instructionData.get("without") != null) return true;
+		if (id != null) return id.trim().split("[,\\s]+").length > 1;
+		return birthday != null && birthday.split("\\s+to\\s+").length > 1;
+	}
+	
+	/**
+	 * Build the conditions of a bulk delete
+	 * @param instructionData
+	 * @return predicates, or null if a condition is not understood
+	 * @throws java.text.ParseException
+	 */
+	private LinkedList<QueryPredicate> readDeletePredicates(
+			Map<String, String> instructionData) throws java.text.ParseException {
+		LinkedList<QueryPredicate> predicates = new LinkedList<QueryPredicate>();
+		
+		if (instructionData.get(Attribute.PATIENTID) != null) {
+			LinkedList<Integer> ids = new LinkedList<Integer>();
+			for (String id : instructionData.get(Attribute.PATIENTID).trim().split("[,\\s]+"))
+				ids.add(Integer.parseInt(id));
+			predicates.add(new QueryPredicate.ByIds(ids));
+		}
+		
+		if (instructionData.get(Attribute.NAME) != null)
+			predicates.add(new QueryPredicate.ByName(instructionData.get(Attribute.NAME)));
+		
+		if (instructionData.get(Attribute.BIRTHDAY) != null) {
+			String[] range = instructionData.get(Attribute.BIRTHDAY).split("\\s+to\\s+", 2);
+			Date start = EMRUtil.stringToDate(range[0].trim());
+			Date end = range.length == 2 ? EMRUtil.stringToDate(range[1].trim()) : start;
+			predicates.add(new QueryPredicate.ByBirthday(start, end));
+		}
+		
+		// "without diagnosis flu", or "without diagnosis" for no diagnosis at all
+		if (instructionData.get("without") != null) {
+			String[] words = instructionData.get("without").trim().split("\\s+", 2);
+			if (!words[0].equals(Attribute.DIAGNOSIS)) return null;
+			predicates.add(new QueryPredicate.WithoutDiagnosis(
+					words.length == 2 ? words[1] : null));
+		}
+		return predicates;
+	}
+	
+	/**
+	 * Read the lines of the open add block up to its "end" line, then apply
+	 * the block. Without an "end" line, the block is applied at the end of
+	 * scanner, or kept open for the next call if more instructions follow.
+	 * @param scanner
+	 * @param records
+	 * @param more whether more instructions will follow in a later call
+	 * @return whether the block was applied
+	 * @throws ParseException
+	 */
+	private boolean readAddBlock(Scanner scanner, PatientStore records, boolean more)
+			throws ParseException {
+		boolean ended = false;
+		while (!ended && scanner.hasNextLine()) {
+			String line = scanner.nextLine().trim();
+			if (line.equals(Command.END)) ended = true;
+			else if (!line.isEmpty())
+				this.addBlock.add(this.readInstructionData(Command.ADD, line));
+		}
+		if (!ended && more) return false;
+		LinkedList<Map<String, String>> block = this.addBlock;
+		this.addBlock = null;
+		this.executeAddBlock(block, records);
+		records.evict();
+		return true;
+	}
+	
+	/**
+	 * Execute a block of "add" instructions in one pass. Each instruction
+	 * updates the existing patient with the same name and birthday, or one
+	 * added earlier in the block; otherwise a new patient is created. New
+	 * patients are added to the store together at the end of the block, so
+	 * every index key is updated once. Not safe to run concurrently with
+	 * other adds.
+	 * @param block add instructions in instruction file order
+	 * @param records
+	 * @throws ParseException
+	 */
+	private void executeAddBlock(LinkedList<Map<String, String>> block,
+			PatientStore records) throws ParseException {
+		Map<String, Patient> added = new LinkedHashMap<String, Patient>();
+		for (Map<String, String> instructionData : block) {
+			String name = instructionData.get(Attribute.NAME);
+			Date birthday = EMRUtil.stringToDate(instructionData.get(Attribute.BIRTHDAY));
+			String key = name + "|" + birthday.getTime();
+			Patient patient = added.get(key);
+			if (patient == null) patient = records.find(name, birthday);
+			if (patient == null) {
+				if (this.validPatientRecord(instructionData))
+					added.put(key, this.createPatient(instructionData, records));
+			} else {
+				this.updatePatient(patient, instructionData);
+			}
+		}
+		records.addAll(added.values());
+	}
+	
 	/**
 	 * Execute "add" command to given Patient list. If both patient name and 
 	 * birthday are identical to those of an existing record in the list, 
 	 * the existing record will be updated with the new input information. Otherwise
-	 * a new valid medical record will be added to the list
+	 * a new valid medical record will be added to the list. Safe to call
+	 * concurrently: the lookup and the insert or update happen under the lock
+	 * stripe of the (name, birthday) key.
+	 * @param instructionData
+	 * @param records
+	 * @throws ParseException
+	 */
+	private void executeAdd(Map<String, String> instructionData,
+			PatientStore records) throws ParseException {
+		this.executeAdd(instructionData, records, null);
+	}
+	
+	/**
+	 * Execute "add" command, creating a new patient with the ID reserved for
+	 * its (name, birthday) key, if any
 	 * @param instructionData
 	 * @param records
+	 * @param ids IDs reserved by "name|birthday time" key, or null
 	 * @throws ParseException
 	 */
 	private void executeAdd(Map<String, String> instructionData,
-			LinkedList<Patient> records) throws ParseException {
+			PatientStore records, Map<String, Integer> ids) throws ParseException {
 		String name = instructionData.get(Attribute.NAME);
 		Date birthday = EMRUtil.stringToDate(instructionData.get(Attribute.BIRTHDAY));
+		
+		synchronized (records.lockFor(name, birthday)) {
+			Patient patient = records.find(name, birthday);
+			// Patient does not already exist, create and patient to existing record
+			if (patient == null) {
+				Integer id = ids == null ? null : ids.get(name + "|" + birthday.getTime());
+				if (this.validPatientRecord(instructionData)) records.add(id == null
+						? this.createPatient(instructionData, records)
+						: this.createPatient(instructionData, id));
+			// Patient already exists, update existing record
+			} else {
+				this.updatePatient(patient, instructionData);
+			}
+		}
+	}
+	
+	/**
+	 * Update an existing patient with the fields given by an "add" instruction
+	 * @param patient
+	 * @param instructionData
+	 * @throws ParseException
+	 */
+	private void updatePatient(Patient patient, Map<String, String> instructionData)
+			throws ParseException {
 		int phone = EMRUtil.validPhone(instructionData.get(Attribute.PHONE));
 		String address = instructionData.get(Attribute.ADDRESS);
 		String email = EMRUtil.validEmail(instructionData.get(Attribute.EMAIL));
 		String medicalHistory = instructionData.get(Attribute.MEDICALHISTORY);
 		
-		Patient patient = findPatient(name, birthday, records);
-		// Patient does not already exist, create and patient to existing record
-		if (patient == null) {
-			if (this.validPatientRecord(instructionData)) records.add(this.createPatient(instructionData));
-		// Patient already exists, update existing record
-		} else {
-			if (phone != -1) patient.setPhone(phone);
-			if (address != null) patient.setAddress(address);
-			if (email != null) patient.setEmail(email);
-			if (medicalHistory != null) patient.addDiagnoses(this.readMedicalHistory(medicalHistory));
-		}
+		if (phone != -1) patient.setPhone(phone);
+		if (address != null) patient.setAddress(address);
+		if (email != null) patient.setEmail(email);
+		if (medicalHistory != null) patient.addDiagnoses(EMRUtil.readMedicalHistory(medicalHistory));
 	}
 	
 	/**
@@ -280,177 +827,170 @@ public class Record {
 			}
 		}
 		
-		// store query name, birthday, start date and end date
-		if (command.equals(Command.QUERY)) {
-			// store name or birthday
-			if (scanner.hasNext()) {
-				String[] pair = scanner.next().trim().split("\\s", 2);
-				attributeValuePairs.put(pair[0], pair[1]);
+		// store query or aggregate conditions, start date and end date
+		if (command.equals(Command.QUERY) || command.equals(Command.AGGREGATE)) {
+			while (scanner.hasNext()) {
+				String segment = scanner.next().trim();
+				String[] pair = segment.split("\\s", 2);
+				// store name, birthday, patient ID, diagnosis, limit or offset
+				if (pair.length == 2 && this.isQueryAttribute(pair[0]))
+					attributeValuePairs.put(pair[0], pair[1]);
+				// store aggregate period: day, month or year
+				else if (command.equals(Command.AGGREGATE) && this.isPeriod(segment))
+					attributeValuePairs.put("per", segment);
+				// anything else is the start date, then the end date
+				else if (!segment.isEmpty() && !attributeValuePairs.containsKey("start"))
+					attributeValuePairs.put("start", segment);
+				else if (!segment.isEmpty() && !attributeValuePairs.containsKey("end"))
+					attributeValuePairs.put("end", segment);
 			}
-			if (scanner.hasNext()) attributeValuePairs.put("start", scanner.next().trim());
-			if (scanner.hasNext()) attributeValuePairs.put("end", scanner.next().trim());
 		}
 		scanner.close();
 		return attributeValuePairs;
 	}
 	
+	private boolean isPeriod(String word) {
+		for (DiagnosisRollup.Granularity granularity : DiagnosisRollup.Granularity.values()) {
+			if (word.equalsIgnoreCase(granularity.name())) return true;
+		}
+		return false;
+	}
+	
+	private boolean isQueryAttribute(String word) {
+		return word.equals(Attribute.PATIENTID) || word.equals(Attribute.NAME)
+				|| word.equals(Attribute.BIRTHDAY) || word.equals(Attribute.DIAGNOSIS)
+				|| word.equals("limit") || word.equals("offset");
+	}
+	
 	/**
-	 * Print EMR record's list of patients to file
-	 * @param outputFile
+	 * Open a scanner over a file, decompressing it if needed
+	 * @param file
+	 * @return
+	 * @throws FileNotFoundException
 	 */
-	private void printOutput(File outputFile) {
-		if (patients.size() == 0)
-			return;
+	private Scanner openScanner(File file) throws FileNotFoundException {
 		try {
-			PrintWriter out = new PrintWriter(outputFile);
-			for (Patient p : patients) {
-				out.println(p.toString());
-				out.println();
-			}
-			out.close();
+			return new Scanner(RecordStreams.open(file));
 		} catch (FileNotFoundException e) {
-			System.out.println("Output file not found!");
+			throw e;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
 	}
 	
 	/**
-	 * Find patient by name and birthday given a list of patients
-	 * @param name
-	 * @param birthday
-	 * @param records
-	 * @return
+	 * Fail if scanner stopped early because its input could not be read, e.g.
+	 * a corrupt compressed file
+	 * @param scanner
 	 */
-	private Patient findPatient(String name, Date birthday,
-			LinkedList<Patient> records) {
-		LinkedList<Patient> resultByName = this.findPatient(name, records);
-		LinkedList<Patient> resultByBirthday = this.findPatient(birthday,
-				records);
-		for (Patient p : resultByName) {
-			if (resultByBirthday.contains(p))
-				return p;
-		}
-		return null;
+	private void checkScanner(Scanner scanner) {
+		if (scanner.ioException() != null)
+			throw new UncheckedIOException(scanner.ioException());
 	}
 	
 	/**
-	 * Find patient by id given a list of patients
-	 * @param id
-	 * @param records
-	 * @return
+	 * Print EMR record's list of patients to file, compressed if its name ends
+	 * with ".gz" or ".bgz". Without patients, the file is left as is.
+	 * @param outputFile
 	 */
-	private Patient findPatient(int id, LinkedList<Patient> records) {
-		for (Patient p : records) {
-			if (id == p.getId())
-				return p;
-		}
-		return null;
+	private void printOutput(File outputFile) {
+		if (patients.size() == 0)
+			return;
+		this.writeOutput(outputFile);
 	}
 	
 	/**
-	 * Find patient by name given a list of patients
-	 * @param name
-	 * @param records
-	 * @return
+	 * Rewrite the output file with EMR record's list of patients, even if
+	 * there are none
+	 * @param outputFile
 	 */
-	private LinkedList<Patient> findPatient(String name,
-			LinkedList<Patient> records) {
-		LinkedList<Patient> results = new LinkedList<Patient>();
-		for (Patient p : records) {
-			if (name.equals(p.getName()))
-				results.add(p);
+	private void writeOutput(File outputFile) {
+		try {
+			PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+					RecordStreams.create(outputFile, false))));
+			for (Patient p : patients) {
+				out.println(p.toString());
+				out.println();
+				this.records.evict();
+			}
+			out.close();
+		} catch (FileNotFoundException e) {
+			System.out.println("Output file not found!");
+		} catch (IOException e) {
+			System.out.println("Output file could not be written!");
 		}
-		return results;
 	}
 	
 	/**
-	 * Find patient by birthday given a list of patients
-	 * @param birthday
+	 * Sort patients in report order: ascending by birthday, then by name, then
+	 * by patient ID.
 	 * @param records
-	 * @return
+	 * @return sorted Patient list
 	 */
-	private LinkedList<Patient> findPatient(Date birthday,
-			LinkedList<Patient> records) {
-		LinkedList<Patient> results = new LinkedList<Patient>();
-		for (Patient p : records) {
-			if (birthday.equals(p.getBirthday()))
-				results.add(p);
-		}
-		return results;
-	}
-	
 	private LinkedList<Patient> sortPatients(LinkedList<Patient> records) {
-		this.sortPatientsByName(records);
-		this.sortPatientsByBirthday(records);
+		Collections.sort(records, REPORT_ORDER);
 		return records;
 	}
 	
 	/**
-	 * Sort patients by name (ascending; a to z) using simple insertion sort algorithm
-	 * @param records
-	 * @return sorted Patient list
+	 * Select one page of results in report order. With a limit, only the first
+	 * offset + limit patients are kept, in a bounded heap holding the largest
+	 * on top, so only the requested page is ever sorted.
+	 * @param results a list patient as a result of querying
+	 * @param offset number of leading results to skip
+	 * @param limit maximum number of results, or -1 for all of them
+	 * @return requested page, sorted
 	 */
-	private LinkedList<Patient> sortPatientsByName(LinkedList<Patient> records) {
-		int i, j, iMin;
-		// Advance the position through the entire array
-		for (j = 0; j < records.size() - 1; j++) {
-			// Find the min element in the unsorted records.get(j .. records.size())
-			// Assume the min is the first element
-			iMin = j;
-			// Test against element after j to find the smallest
-			for (i = j + 1; i < records.size(); i ++) {
-				// Compare Patient's name first character
-				if (records.get(i).getName().charAt(0) < records.get(iMin).getName().charAt(0))
-					// Found new minimum; remember its index
-					iMin = i;
-			}
-			// iMin is the index of the minimum element. Swap it with current position
-			if (iMin != j) {
-				Patient temp = records.get(j);
-				records.set(j, records.get(iMin));
-				records.set(iMin, temp);
+	private LinkedList<Patient> selectPage(LinkedList<Patient> results,
+			int offset, int limit) {
+		if (limit < 0) {
+			this.sortPatients(results);
+			while (offset-- > 0 && !results.isEmpty()) results.removeFirst();
+			return results;
+		}
+		
+		// Never keep more than there are results, however large the page
+		int size = (int) Math.min((long) offset + limit, results.size());
+		LinkedList<Patient> page = new LinkedList<Patient>();
+		if (size <= offset) return page;
+		PriorityQueue<Patient> heap = new PriorityQueue<Patient>(size + 1,
+				Collections.reverseOrder(REPORT_ORDER));
+		for (Patient p : results) {
+			if (heap.size() < size) {
+				heap.add(p);
+			} else if (REPORT_ORDER.compare(p, heap.peek()) < 0) {
+				heap.poll();
+				heap.add(p);
 			}
 		}
-		return records;
+		while (heap.size() > offset) page.addFirst(heap.poll());
+		return page;
 	}
 	
 	/**
-	 * Sort patients by birthday (ascending; earliest to latest) using simple 
-	 * insertion sort algorithm.
-	 * @param records
-	 * @return sorted Patient list
+	 * Create and return a Patient object given attribute value pairs set. With the
+	 * assumption that data pairs are valid. The patient ID is allocated from the
+	 * shard of the store that will own the patient.
+	 * @param attributeValuePairs
+	 * @param records store the patient is created for
+	 * @return
+	 * @throws java.text.ParseException
 	 */
-	private LinkedList<Patient> sortPatientsByBirthday(LinkedList<Patient> records) {
-		int i, j, iMin;
-		// Advance the position through the entire array
-		for (j = 0; j < records.size() - 1; j++) {
-			// Find the min element in the unsorted records.get(j .. records.size())
-			// Assume the min is the first element
-			iMin = j;
-			// Test against element after j to find the smallest
-			for (i = j + 1; i < records.size(); i ++) {
-				// Compare Patient's birthday
-				if (records.get(i).getBirthday().before(records.get(iMin).getBirthday()))
-					// Found new minimum; remember its index
-					iMin = i;
-			}
-			// iMin is the index of the minimum element. Swap it with current position
-			if (iMin != j) {
-				Patient temp = records.get(j);
-				records.set(j, records.get(iMin));
-				records.set(iMin, temp);
-			}
-		}
-		return records;
+	private Patient createPatient(Map<String, String> attributeValuePairs,
+			PatientStore records) throws java.text.ParseException {
+		return this.createPatient(attributeValuePairs, records.nextId(
+				EMRUtil.validName(attributeValuePairs.get(Attribute.NAME)),
+				EMRUtil.stringToDate(attributeValuePairs.get(Attribute.BIRTHDAY))));
 	}
 	
 	/**
-	 * Create and return a Patient object given attribute value pairs set. With the
-	 * assumption that data pairs are valid.
+	 * Create and return a Patient object with the given ID
 	 * @param attributeValuePairs
+	 * @param id patient ID, allocated from the shard that will own the patient
 	 * @return
 	 * @throws java.text.ParseException
 	 */
-	private Patient createPatient(Map<String, String> attributeValuePairs)
+	private Patient createPatient(Map<String, String> attributeValuePairs, int id)
 			throws java.text.ParseException {
 		
 		// Set fields with assumptions data is valid
@@ -460,40 +1000,162 @@ public class Record {
 		Date birthday = EMRUtil.stringToDate(attributeValuePairs
 				.get(Attribute.BIRTHDAY));
 		String address = attributeValuePairs.get(Attribute.ADDRESS);
-		LinkedList<Diagnosis> medicalHistory = readMedicalHistory(attributeValuePairs
+		LinkedList<Diagnosis> medicalHistory = EMRUtil.readMedicalHistory(attributeValuePairs
 				.get(Attribute.MEDICALHISTORY));
 		
-		// Update lastUsedId count and return the new patient
-		this.lastUsedId++;
-		return new Patient(this.lastUsedId, name, birthday, phone, address, email,
-				medicalHistory);
+		// Return the new patient
+		return new Patient(id, name, birthday, phone,
+				address, email, medicalHistory);
 	}
 	
 	/**
-	 * Return a list of Patient given a record file. Patient data are separated
-	 * by a blank line. Patients are created only if record data is valid.
+	 * Load patients from a record file into the given store. Patient data are
+	 * separated by a blank line. Patients are created only if record data is valid.
+	 * The file may be gzip or blocked gzip compressed, in which case it is
+	 * loaded eagerly even if lazy loading is set.
 	 * @param file
-	 * @return
+	 * @param records store to add patients to
 	 * @throws FileNotFoundException
 	 * @throws java.text.ParseException
 	 */
-	private LinkedList<Patient> createPatientRecord(File file)
+	private void createPatientRecord(File file, PatientStore records)
 			throws FileNotFoundException, java.text.ParseException {
+		if (this.options.getDeduplication() != RecordOptions.Deduplication.OFF)
+			this.deduplicator = new Deduplicator();
+		if (this.options.isLazy() && !this.isCompressed(file)) {
+			this.createLazyPatientRecord(file, records);
+			return;
+		}
 		
 		// Scan each record delimited by a blank line
-		Scanner scanner = new Scanner(file).useDelimiter(Pattern.compile(
+		Scanner scanner = this.openScanner(file).useDelimiter(Pattern.compile(
 				"^\\s*$", Pattern.MULTILINE));
-		LinkedList<Patient> records = new LinkedList<Patient>();
 		while (scanner.hasNext()) {
 			String record = scanner.next().trim();
-			Map<String, String> preparedRecord = this.readPatientRecord(record);
+			Map<String, String> preparedRecord = EMRUtil.readPatientRecord(record);
 			
-			// create and add patient if data is valid
-			if (this.validPatientRecord(preparedRecord))
-				records.add(this.createPatient(preparedRecord));
+			// create and add patient if data is valid, unless it is merged
+			if (this.validPatientRecord(preparedRecord)) {
+				Patient duplicate = this.findDuplicate(preparedRecord);
+				if (duplicate != null)
+					this.mergePatient(duplicate, preparedRecord);
+				else
+					this.loadPatient(this.createPatient(preparedRecord, records), records);
+			}
+			records.evict();
 		}
+		this.checkScanner(scanner);
 		scanner.close();
-		return records;
+	}
+	
+	private boolean isCompressed(File file) throws FileNotFoundException {
+		try {
+			return RecordStreams.isCompressed(file);
+		} catch (FileNotFoundException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Load patients from a record file without parsing them. The file is
+	 * memory-mapped and indexed in one scan; each valid record becomes a
+	 * Patient holding only its ID, name and birthday plus the location of its
+	 * record block, from which the rest is parsed on first use.
+	 * @param file
+	 * @param records store to add patients to
+	 * @throws FileNotFoundException
+	 * @throws java.text.ParseException
+	 */
+	private void createLazyPatientRecord(File file, PatientStore records)
+			throws FileNotFoundException, java.text.ParseException {
+		if (!file.exists()) throw new FileNotFoundException(file.getPath());
+		RecordIndex index;
+		try {
+			index = new RecordIndex(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		Map<String, String> preparedRecord = new HashMap<String, String>();
+		for (RecordBlock block : index.getBlocks()) {
+			preparedRecord.put(Attribute.NAME, block.getName());
+			preparedRecord.put(Attribute.BIRTHDAY, block.getBirthday());
+			
+			// create and add patient if data is valid, unless it is merged
+			if (this.validPatientRecord(preparedRecord)) {
+				Patient duplicate = this.findDuplicate(preparedRecord);
+				if (duplicate != null) {
+					this.mergePatient(duplicate, EMRUtil.readPatientRecord(block.read()));
+				} else {
+					String name = EMRUtil.validName(block.getName());
+					Date birthday = EMRUtil.stringToDate(block.getBirthday());
+					this.loadPatient(new Patient(records.nextId(name, birthday), name,
+							birthday, block), records);
+				}
+			}
+			records.evict();
+		}
+	}
+	
+	/**
+	 * Find the already loaded patient a valid record should be merged into.
+	 * Only records with the same normalized name and birthday are merged, and
+	 * only when deduplication is set to MERGE.
+	 * @param preparedRecord
+	 * @return patient to merge into, or null to load the record as a new patient
+	 * @throws java.text.ParseException
+	 */
+	private Patient findDuplicate(Map<String, String> preparedRecord)
+			throws java.text.ParseException {
+		if (this.options.getDeduplication() != RecordOptions.Deduplication.MERGE)
+			return null;
+		return this.deduplicator.findExact(
+				EMRUtil.validName(preparedRecord.get(Attribute.NAME)),
+				EMRUtil.stringToDate(preparedRecord.get(Attribute.BIRTHDAY)));
+	}
+	
+	/**
+	 * Merge a duplicate record into an existing patient. Contact details the
+	 * patient is missing are taken from the record and medical histories are
+	 * combined.
+	 * @param patient
+	 * @param preparedRecord
+	 * @throws java.text.ParseException
+	 */
+	private void mergePatient(Patient patient, Map<String, String> preparedRecord)
+			throws java.text.ParseException {
+		int phone = EMRUtil.validPhone(preparedRecord.get(Attribute.PHONE));
+		String address = preparedRecord.get(Attribute.ADDRESS);
+		String email = EMRUtil.validEmail(preparedRecord.get(Attribute.EMAIL));
+		LinkedList<Diagnosis> medicalHistory = EMRUtil.readMedicalHistory(
+				preparedRecord.get(Attribute.MEDICALHISTORY));
+		
+		if (patient.getPhone() == -1) patient.setPhone(phone);
+		if (patient.getAddress() == null) patient.setAddress(address);
+		if (patient.getEmail() == null) patient.setEmail(email);
+		if (medicalHistory != null) patient.addDiagnoses(medicalHistory);
+	}
+	
+	/**
+	 * Add a newly loaded patient to the store. When deduplication is on, the
+	 * patient is first checked against the earlier ones sharing its blocking
+	 * keys and recorded as a likely duplicate of the first match.
+	 * @param patient
+	 * @param records
+	 */
+	private void loadPatient(Patient patient, PatientStore records) {
+		records.add(patient);
+		if (this.deduplicator == null) return;
+		Patient match = this.deduplicator.findExact(patient.getName(),
+				patient.getBirthday());
+		if (match == null) {
+			LinkedList<Patient> similar = this.deduplicator.findSimilar(
+					patient.getName(), patient.getBirthday());
+			if (!similar.isEmpty()) match = similar.getFirst();
+		}
+		if (match != null) this.deduplicator.addDuplicate(match, patient);
+		this.deduplicator.add(patient);
 	}
 	
 	/**
@@ -517,66 +1179,4 @@ public class Record {
 			return false;
 		return true;
 	}
-	
-	/**
-	 * Read a string of medical history and convert them to
-	 * LinkedList<Diagnosis>, separated with either a newline or a comma
-	 * @param medicalHistory
-	 * @return LinkedList<Diagnosis>
-	 * @throws java.text.ParseException
-	 */
-	private LinkedList<Diagnosis> readMedicalHistory(String medicalHistory)
-			throws java.text.ParseException {
-		if (medicalHistory == null) return null;
-		if (medicalHistory.split("\\s+").length < 2) return null;
-		
-		// Handles commas from 'add' instructions
-		medicalHistory = medicalHistory.replaceAll(",\\s*", "\n");
-		
-		LinkedList<Diagnosis> diagnoses = new LinkedList<Diagnosis>();
-		Scanner scanner = new Scanner(medicalHistory);
-		while (scanner.hasNextLine()) {
-			String date = "", information = "";
-			String[] words = scanner.nextLine().split("\\s+");
-			for (int i = 0; i < words.length; i++) {
-				if (EMRUtil.dateIsValid(words[i]))
-					date = words[i];
-				else
-					information += words[i] + " ";
-			}
-			diagnoses.add(new Diagnosis(EMRUtil.stringToDate(date.trim()),
-					information.trim()));
-		}
-		scanner.close();
-		return diagnoses;
-	}
-	
-	/**
-	 * Read a chunk of patient record and convert them to attribute value pairs
-	 * (pairs are in String) to be processed later. Value is a string following
-	 * an attribute keyword.
-	 * @param record
-	 * @return attribute value pairs, e.g: {"name", "John Smith"}
-	 */
-	private Map<String, String> readPatientRecord(String record) {
-		Map<String, String> attributeValuePairs = new HashMap<String, String>();
-		String attribute = "", value = "";
-		Scanner scanner = new Scanner(record);
-
-		while (scanner.hasNextLine()) {
-			if (EMRUtil.scannerHasNextAttributeWord(scanner)) {
-				attribute = scanner.next();
-				while (!EMRUtil.scannerHasNextAttributeWord(scanner)) {
-					if (!scanner.hasNext())
-						break;
-					value += scanner.nextLine().replaceAll("\\s+", " ").trim()
-							+ "\n";
-				}
-				attributeValuePairs.put(attribute.trim(), value.trim());
-				value = "";
-			}
-		}
-		scanner.close();
-		return attributeValuePairs;
-	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,44 @@
+/**
+ * Location of a single record inside a memory-mapped medical record file,
+ * together with the name and birthday read while indexing it. The remaining
+ * attributes are only decoded when {@link #read()} is called.
+ * @author VG
+ *
+ */
+public class RecordBlock {
+	private final RecordIndex index;
+	private final long offset;
+	private final int length;
+	private final String name;
+	private final String birthday;
+
+	/**
+	 * Constructor for record block.
+	 * @param index mapped file the block belongs to
+	 * @param offset position of the block's first byte in the file
+	 * @param length number of bytes in the block
+	 * @param name raw name value, null if absent
+	 * @param birthday raw birthday value, null if absent
+	 */
+	public RecordBlock(RecordIndex index, long offset, int length, String name,
+			String birthday) {
+		this.index = index;
+		this.offset = offset;
+		this.length = length;
+		this.name = name;
+		this.birthday = birthday;
+	}
+
+	public long getOffset() { return this.offset; }
+	public int getLength() { return this.length; }
+	public String getName() { return this.name; }
+	public String getBirthday() { return this.birthday; }
+
+	/**
+	 * Decode the whole record from the mapped file
+	 * @return record text, ready for EMRUtil.readPatientRecord
+	 */
+	public String read() {
+		return this.index.read(this.offset, this.length);
+	}
+}
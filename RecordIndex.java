@@ -0,0 +1,169 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+
+/**
+ * Offset index over a memory-mapped medical record file. A single pass over
+ * the raw bytes finds every record block (records are separated by a blank
+ * line) and pulls out only its name and birthday, which is all that is needed
+ * to validate a record and index it. The full record is decoded and parsed
+ * later, from the mapped file, through {@link RecordBlock#read()}.
+ * @author VG
+ *
+ */
+public class RecordIndex {
+	// Files larger than a segment are mapped as several consecutive segments
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+	private static final byte[][] ATTRIBUTES = new byte[EMRUtil.attributes.length][];
+	static {
+		for (int i = 0; i < EMRUtil.attributes.length; i++)
+			ATTRIBUTES[i] = EMRUtil.attributes[i].getBytes();
+	}
+
+	private final MappedByteBuffer[] segments;
+	private final long length;
+	private final Charset charset = Charset.defaultCharset();
+	private final LinkedList<RecordBlock> blocks = new LinkedList<RecordBlock>();
+
+	/**
+	 * Map the record file and index its blocks
+	 * @param file medical record file
+	 * @throws IOException
+	 */
+	public RecordIndex(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			this.length = channel.size();
+			int count = (int) ((this.length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+			this.segments = new MappedByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long position = i * SEGMENT_SIZE;
+				this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+						position, Math.min(SEGMENT_SIZE, this.length - position));
+			}
+		} finally {
+			in.close();
+		}
+		this.scan();
+	}
+
+	/**
+	 * Get every record block in file order
+	 * @return
+	 */
+	public LinkedList<RecordBlock> getBlocks() { return this.blocks; }
+
+	/**
+	 * Decode part of the mapped file
+	 * @param offset
+	 * @param length
+	 * @return text of the given byte range
+	 */
+	String read(long offset, int length) {
+		byte[] bytes = new byte[length];
+		int copied = 0;
+		while (copied < length) {
+			long position = offset + copied;
+			ByteBuffer segment = this.segments[(int) (position >>> SEGMENT_BITS)].duplicate();
+			segment.position((int) (position & SEGMENT_MASK));
+			int n = Math.min(length - copied, segment.remaining());
+			segment.get(bytes, copied, n);
+			copied += n;
+		}
+		return new String(bytes, this.charset);
+	}
+
+	private byte byteAt(long position) {
+		return this.segments[(int) (position >>> SEGMENT_BITS)].get(
+				(int) (position & SEGMENT_MASK));
+	}
+
+	/**
+	 * Walk the file line by line. A block starts at its first non-blank line
+	 * and ends after its last one. Within a block, a line whose first word is
+	 * an attribute keyword starts that attribute's value; any other line
+	 * continues the current value, the same way EMRUtil.readPatientRecord
+	 * reads a record.
+	 */
+	private void scan() {
+		long blockStart = -1, blockEnd = -1;
+		String name = null, birthday = null;
+		String current = null;
+		long position = 0;
+		while (position < this.length) {
+			long lineStart = position;
+			while (position < this.length && this.byteAt(position) != '\n') position++;
+			long lineEnd = position;
+			position++;
+
+			long wordStart = this.skipWhitespace(lineStart, lineEnd);
+			if (wordStart == lineEnd) {
+				// blank line closes the current block
+				if (blockStart >= 0)
+					this.addBlock(blockStart, blockEnd, name, birthday);
+				blockStart = -1;
+				name = birthday = null;
+				current = null;
+				continue;
+			}
+			if (blockStart < 0) blockStart = lineStart;
+			blockEnd = lineEnd;
+
+			long wordEnd = wordStart;
+			while (wordEnd < lineEnd && !isWhitespace(this.byteAt(wordEnd))) wordEnd++;
+			String attribute = this.attributeAt(wordStart, wordEnd);
+			long valueStart = wordStart;
+			if (attribute != null) {
+				current = attribute;
+				valueStart = wordEnd;
+				if (current.equals(Attribute.NAME)) name = "";
+				if (current.equals(Attribute.BIRTHDAY)) birthday = "";
+			}
+			if (Attribute.NAME.equals(current))
+				name += this.readLine(valueStart, lineEnd) + "\n";
+			else if (Attribute.BIRTHDAY.equals(current))
+				birthday += this.readLine(valueStart, lineEnd) + "\n";
+		}
+		if (blockStart >= 0)
+			this.addBlock(blockStart, blockEnd, name, birthday);
+	}
+
+	private void addBlock(long start, long end, String name, String birthday) {
+		this.blocks.add(new RecordBlock(this, start, (int) (end - start),
+				name == null ? null : name.trim(),
+				birthday == null ? null : birthday.trim()));
+	}
+
+	private long skipWhitespace(long position, long end) {
+		while (position < end && isWhitespace(this.byteAt(position))) position++;
+		return position;
+	}
+
+	/**
+	 * Get the attribute keyword spelled by the given bytes, if any
+	 */
+	private String attributeAt(long start, long end) {
+		for (int a = 0; a < ATTRIBUTES.length; a++) {
+			byte[] attribute = ATTRIBUTES[a];
+			if (attribute.length != end - start) continue;
+			int i = 0;
+			while (i < attribute.length && attribute[i] == this.byteAt(start + i)) i++;
+			if (i == attribute.length) return EMRUtil.attributes[a];
+		}
+		return null;
+	}
+
+	private String readLine(long start, long end) {
+		return this.read(start, (int) (end - start)).replaceAll("\\s+", " ").trim();
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+	}
+}
@@ -0,0 +1,125 @@
+import java.io.File;
+
+/**
+ * This class contains the tunable settings used by Record when it loads a
+ * medical record file and executes instructions against it. The defaults
+ * reproduce the original single-threaded behaviour.
+ * @author VG
+ *
+ */
+public class RecordOptions {
+	/**
+	 * How duplicate patients in the record file are handled while loading.
+	 * OFF loads every valid record as its own patient. MERGE folds a record
+	 * with the same name (ignoring case and spacing) and birthday as an earlier
+	 * one into that patient, and reports names that only sound alike. REPORT
+	 * loads every record but reports both kinds of duplicates.
+	 */
+	public enum Deduplication { OFF, MERGE, REPORT }
+	
+	private int shardCount = 1;
+	private int ingestThreads = 1;
+	private boolean lazy = false;
+	private Deduplication deduplication = Deduplication.OFF;
+	private long memoryBudget = 0;
+	private File spillDirectory;
+	private RunCache runCache;
+
+	/**
+	 * Number of shards the patient set is split into. Each shard owns its own
+	 * indexes and ID range, so patient IDs are only sequential with one shard.
+	 * @param shardCount number of shards (at least 1)
+	 * @return this options object
+	 */
+	public RecordOptions setShardCount(int shardCount) {
+		this.shardCount = Math.max(1, shardCount);
+		return this;
+	}
+
+	public int getShardCount() { return this.shardCount; }
+
+	/**
+	 * Number of threads consecutive add instructions are applied with. Adds
+	 * for the same patient keep their order, and new patients get their IDs
+	 * in instruction order whatever the number of threads.
+	 * @param ingestThreads number of threads (at least 1)
+	 * @return this options object
+	 */
+	public RecordOptions setIngestThreads(int ingestThreads) {
+		this.ingestThreads = Math.max(1, ingestThreads);
+		return this;
+	}
+
+	public int getIngestThreads() { return this.ingestThreads; }
+
+	/**
+	 * Load the record file lazily: one scan indexes each record by name and
+	 * birthday, and the rest of a patient is only parsed from the memory-mapped
+	 * file when a query, add or output needs it.
+	 * @param lazy
+	 * @return this options object
+	 */
+	public RecordOptions setLazy(boolean lazy) {
+		this.lazy = lazy;
+		return this;
+	}
+
+	public boolean isLazy() { return this.lazy; }
+
+	/**
+	 * Set how duplicate patients are handled while loading the record file.
+	 * Reported duplicates are written to the top of the report file, with
+	 * their medical histories combined.
+	 * @param deduplication
+	 * @return this options object
+	 */
+	public RecordOptions setDeduplication(Deduplication deduplication) {
+		this.deduplication = deduplication;
+		return this;
+	}
+
+	public Deduplication getDeduplication() { return this.deduplication; }
+
+	/**
+	 * Bound the memory used by patients' phone, address, email and medical
+	 * history. Beyond it, the least recently used are spilled to a file in the
+	 * spill directory and read back when needed. IDs, names and birthdays are
+	 * always kept in memory.
+	 * @param memoryBudget budget in bytes, or 0 for no bound
+	 * @return this options object
+	 */
+	public RecordOptions setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = Math.max(0, memoryBudget);
+		return this;
+	}
+
+	public long getMemoryBudget() { return this.memoryBudget; }
+
+	/**
+	 * Set the directory the spill file is created in. It should be on a local
+	 * disk, not a memory-backed file system.
+	 * @param spillDirectory directory, or null for the temporary-file directory
+	 * @return this options object
+	 */
+	public RecordOptions setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+		return this;
+	}
+
+	public File getSpillDirectory() { return this.spillDirectory; }
+
+	/**
+	 * Skip runs whose record file, instruction file and result-changing
+	 * options are unchanged since a run recorded in the given cache, reusing
+	 * that run's output and report files. One cache can be shared by a batch
+	 * of records to count its hits and misses.
+	 * @param runCache cache, or null to always execute
+	 * @return this options object
+	 */
+	public RecordOptions setRunCache(RunCache runCache) {
+		this.runCache = runCache;
+		return this;
+	}
+
+	public RunCache getRunCache() { return this.runCache; }
+}
@@ -0,0 +1,217 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Resident daemon serving instructions for a medical record that is loaded
+ * once and kept warm. Clients connect to a Unix domain socket and send
+ * instructions in the usual add / delete / query / save syntax, one per line.
+ * Only the user running the server may connect: the socket file is readable
+ * and writable by its owner only, and is created with those permissions in
+ * a private directory before being moved into place, so no other user can
+ * connect in between.
+ * A batch ends with a blank line or the end of the client's input, except
+ * within an add block, which may hold blank lines and ends with its "end"
+ * line; a batch is executed as a whole, its query results are streamed
+ * back on the same connection, and an "End of Batch" line follows. Save
+ * rewrites the output file. Batches from different clients are executed
+ * one at a time.
+ * @author VG
+ *
+ */
+public class RecordServer {
+	static final String END_OF_BATCH =
+			"--------------------- End of Batch -----------------------------";
+
+	private final Record record;
+	private final File socketFile;
+	private ServerSocketChannel serverChannel;
+	private final ExecutorService connections = Executors.newCachedThreadPool(
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "emr-connection");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/**
+	 * Constructor for record server. Loads the medical record file.
+	 * @param medicalRecordFile
+	 * @param outputFile file rewritten on every save
+	 * @param options
+	 * @param socketFile path of the Unix domain socket to listen on
+	 * @throws FileNotFoundException
+	 * @throws java.text.ParseException
+	 */
+	public RecordServer(File medicalRecordFile, File outputFile,
+			RecordOptions options, File socketFile) throws FileNotFoundException,
+			java.text.ParseException {
+		this.record = new Record(medicalRecordFile, outputFile, options);
+		this.socketFile = socketFile.getAbsoluteFile();
+		this.record.appendDuplicateReport(new Report() {
+			@Override
+			public void append(String s) {
+				System.out.print(s);
+			}
+		});
+	}
+
+	/**
+	 * Start listening. Must be called before {@link #run()}. A socket file
+	 * left behind by a server that is gone is replaced.
+	 * @return the socket file
+	 * @throws IOException
+	 */
+	public synchronized File bind() throws IOException {
+		if (this.serverChannel != null) return this.socketFile;
+		Path socket = this.socketFile.toPath();
+		Path directory = Files.createTempDirectory(socket.getParent(), ".emr",
+				PosixFilePermissions.asFileAttribute(
+						PosixFilePermissions.fromString("rwx------")));
+		Path bound = directory.resolve("socket");
+		ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.bind(UnixDomainSocketAddress.of(bound));
+			Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+			if (Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) {
+				// Only ever replace a socket, never a file someone cares about
+				if (Files.isRegularFile(socket, LinkOption.NOFOLLOW_LINKS)
+						|| Files.isDirectory(socket, LinkOption.NOFOLLOW_LINKS)
+						|| Files.isSymbolicLink(socket))
+					throw new FileAlreadyExistsException(socket.toString());
+				if (isServing(socket))
+					throw new FileAlreadyExistsException(socket.toString(), null,
+							"another server is listening");
+				Files.delete(socket);
+			}
+			Files.move(bound, socket, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			channel.close();
+			Files.deleteIfExists(bound);
+			throw e;
+		} finally {
+			Files.deleteIfExists(directory);
+		}
+		this.serverChannel = channel;
+		return this.socketFile;
+	}
+
+	/**
+	 * Check whether a server still accepts connections on a socket file
+	 */
+	private static boolean isServing(Path socket) {
+		try {
+			SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Accept connections until {@link #stop()} is called
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		this.bind();
+		try {
+			while (this.serverChannel.isOpen()) {
+				final SocketChannel socket;
+				try {
+					socket = this.serverChannel.accept();
+				} catch (ClosedChannelException e) {
+					// server channel closed by stop()
+					break;
+				}
+				this.connections.submit(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				});
+			}
+		} finally {
+			this.connections.shutdownNow();
+			this.record.close();
+			this.socketFile.delete();
+		}
+	}
+
+	/**
+	 * Stop accepting connections and make {@link #run()} return
+	 */
+	public synchronized void stop() {
+		try {
+			if (this.serverChannel != null) this.serverChannel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Read batches from a client and answer each of them
+	 * @param socket
+	 */
+	private void serve(SocketChannel socket) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					Channels.newInputStream(socket)));
+			final PrintWriter out = new PrintWriter(new BufferedWriter(
+					new OutputStreamWriter(Channels.newOutputStream(socket))));
+			Report report = new Report() {
+				@Override
+				public void append(String s) {
+					out.print(s);
+					out.flush();
+				}
+			};
+			StringBuilder batch = new StringBuilder();
+			boolean inBlock = false;
+			String line;
+			do {
+				line = in.readLine();
+				if (line != null && (inBlock || !line.trim().isEmpty())) {
+					// Keep an add block in one batch, as it is applied as a whole
+					if (line.trim().equals(inBlock ? Command.END : Command.ADD))
+						inBlock = !inBlock;
+					batch.append(line).append('\n');
+					continue;
+				}
+				if (batch.length() > 0) {
+					this.execute(batch.toString(), report, out);
+					batch.setLength(0);
+				}
+			} while (line != null);
+		} catch (ClosedByInterruptException e) {
+			// server stopped
+		} catch (IOException e) {
+			System.out.println("Connection lost: " + e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void execute(String batch, Report report, PrintWriter out) {
+		Scanner scanner = new Scanner(batch);
+		try {
+			synchronized (this.record) {
+				this.record.executeInstructions(scanner, report);
+			}
+		} catch (Exception e) {
+			out.println("Error: " + e);
+		} finally {
+			scanner.close();
+		}
+		out.println(END_OF_BATCH);
+		out.flush();
+	}
+}
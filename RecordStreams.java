@@ -0,0 +1,87 @@
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens record, instruction, output and report files, compressed or not.
+ * Compressed input is detected from its first bytes: blocked gzip (BGZF) is
+ * decompressed on several threads, any other gzip stream on the reading
+ * thread. Output is compressed according to the file name: ".bgz" for
+ * blocked gzip, ".gz" for gzip.
+ * @author VG
+ *
+ */
+public class RecordStreams {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int HEADER_SIZE = 16;
+	private static final String BLOCKED_GZIP = "bgz";
+	private static final String GZIP = "gz";
+	private static final String PLAIN = "plain";
+
+	/**
+	 * Check whether a file is gzip or blocked gzip compressed
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isCompressed(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return in.read() == 0x1f && in.read() == 0x8b;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Open a file for reading, decompressing it if needed
+	 * @param file
+	 * @return uncompressed contents
+	 * @throws IOException
+	 */
+	public static InputStream open(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		byte[] header = new byte[HEADER_SIZE];
+		in.mark(HEADER_SIZE);
+		int length = 0, n;
+		while (length < HEADER_SIZE && (n = in.read(header, length, HEADER_SIZE - length)) > 0)
+			length += n;
+		in.reset();
+		if (BlockedGzipInputStream.isBlocked(header, length))
+			return new BlockedGzipInputStream(in, Runtime.getRuntime().availableProcessors());
+		if (length >= 2 && (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b)
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		return in;
+	}
+
+	/**
+	 * Open a file for writing, compressing it if its name asks for it. When
+	 * appending to a compressed file, a new gzip member or block is started,
+	 * which gzip readers join to the existing ones.
+	 * @param file
+	 * @param append whether to keep existing contents
+	 * @return
+	 * @throws IOException
+	 */
+	public static OutputStream create(File file, boolean append) throws IOException {
+		OutputStream out = new FileOutputStream(file, append);
+		String format = formatOf(file);
+		if (format.equals(BLOCKED_GZIP))
+			return new BlockedGzipOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+		if (format.equals(GZIP))
+			return new GZIPOutputStream(out, BUFFER_SIZE);
+		return new BufferedOutputStream(out, BUFFER_SIZE);
+	}
+
+	/**
+	 * Get the format a file is written in, from its name
+	 * @param file
+	 * @return "bgz", "gz" or "plain"
+	 */
+	public static String formatOf(File file) {
+		String name = file.getName();
+		if (name.endsWith(".bgz")) return BLOCKED_GZIP;
+		if (name.endsWith(".gz")) return GZIP;
+		return PLAIN;
+	}
+}
@@ -0,0 +1,175 @@
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running watch mode for a medical record. The record file is loaded
+ * once and the instruction file is followed like "tail -f": only the lines
+ * appended since the last check are executed. Query results are appended to
+ * the report file and the output file is rewritten on every save.
+ *
+ * Changes are picked up through a WatchService on the instruction file's
+ * directory, with a timed poll of the file length as a fallback for file
+ * systems that do not deliver events. A truncated instruction file is
+ * followed again from its beginning. A line that fails is reported and
+ * skipped, and the watcher goes on with the next one. An add block may be appended over
+ * several checks; it is applied once its "end" line arrives.
+ * @author VG
+ *
+ */
+public class RecordWatcher {
+	private final Record record;
+	private final File instructionFile;
+	private final ReportFile report;
+	private final long pollInterval;
+	private static final int CHUNK_SIZE = 1 << 16;
+	private long offset = 0;
+	private volatile boolean running = false;
+
+	/**
+	 * Constructor for record watcher. Loads the medical record file.
+	 * @param medicalRecordFile
+	 * @param instructionFile file to follow
+	 * @param outputFile file rewritten on every save
+	 * @param reportFile file query results are appended to
+	 * @param options
+	 * @param pollInterval longest wait between two checks, in milliseconds
+	 * @throws FileNotFoundException
+	 * @throws java.text.ParseException
+	 */
+	public RecordWatcher(File medicalRecordFile, File instructionFile,
+			File outputFile, File reportFile, RecordOptions options,
+			long pollInterval) throws FileNotFoundException,
+			java.text.ParseException {
+		this.record = new Record(medicalRecordFile, outputFile, options);
+		this.instructionFile = instructionFile;
+		this.report = new ReportFile(reportFile);
+		this.pollInterval = pollInterval;
+		this.report.clear();
+		this.record.appendDuplicateReport(this.report);
+	}
+
+	/**
+	 * Apply the instructions already in the file, then keep following it until
+	 * {@link #stop()} is called or the thread is interrupted.
+	 * @throws IOException
+	 * @throws java.text.ParseException
+	 */
+	public void run() throws IOException, java.text.ParseException {
+		this.running = true;
+		WatchService watcher = null;
+		try {
+			watcher = this.register();
+			this.poll();
+			while (this.running) {
+				if (watcher != null) {
+					WatchKey key = watcher.poll(this.pollInterval, TimeUnit.MILLISECONDS);
+					if (key != null) {
+						key.pollEvents();
+						key.reset();
+					}
+				} else {
+					Thread.sleep(this.pollInterval);
+				}
+				this.poll();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			this.running = false;
+			if (watcher != null) watcher.close();
+			this.record.close();
+		}
+	}
+
+	/**
+	 * Ask a running watcher to return after its current check
+	 */
+	public void stop() {
+		this.running = false;
+	}
+
+	/**
+	 * Execute the complete lines appended to the instruction file since the
+	 * last call, one at a time. The file is read in chunks, so only one line
+	 * is held in memory at once. A trailing line without its newline yet is
+	 * left for the next call.
+	 * @return number of bytes consumed
+	 * @throws IOException
+	 * @throws java.text.ParseException
+	 */
+	public long poll() throws IOException, java.text.ParseException {
+		if (!this.instructionFile.exists()) return 0;
+		RandomAccessFile in = new RandomAccessFile(this.instructionFile, "r");
+		try {
+			long length = in.length();
+			if (length < this.offset) {
+				System.out.println("Instruction file truncated, following from start");
+				this.offset = 0;
+			}
+			long start = this.offset;
+			long position = this.offset;
+			byte[] chunk = new byte[CHUNK_SIZE];
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			in.seek(position);
+			while (position < length) {
+				int n = in.read(chunk, 0, (int) Math.min(chunk.length, length - position));
+				if (n <= 0) break;
+				position += n;
+				int from = 0;
+				for (int i = 0; i < n; i++) {
+					if (chunk[i] != '\n') continue;
+					line.write(chunk, from, i + 1 - from);
+					from = i + 1;
+					// Consume before executing so a failing line is not applied twice
+					this.offset += line.size();
+					this.execute(new String(line.toByteArray(), Charset.defaultCharset()));
+					line.reset();
+				}
+				line.write(chunk, from, n - from);
+			}
+			return this.offset - start;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Execute one line of the instruction file, reporting it if it fails
+	 * @param line
+	 */
+	private void execute(String line) {
+		Scanner scanner = new Scanner(line);
+		try {
+			this.record.executeInstructions(scanner, this.report, true);
+		} catch (Exception e) {
+			System.out.println("Instruction skipped: " + line.trim() + ": " + e);
+		} finally {
+			scanner.close();
+		}
+	}
+
+	/**
+	 * Register for modification events on the instruction file's directory
+	 * @return watch service, or null if events are not available
+	 */
+	private WatchService register() {
+		File directory = this.instructionFile.getAbsoluteFile().getParentFile();
+		WatchService watcher = null;
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			directory.toPath().register(watcher,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			return watcher;
+		} catch (IOException e) {
+			try {
+				if (watcher != null) watcher.close();
+			} catch (IOException ignored) {
+			}
+			return null;
+		}
+	}
+}
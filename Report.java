@@ -0,0 +1,16 @@
+import java.io.IOException;
+
+/**
+ * Destination of the query results produced while executing instructions,
+ * such as a report file or a client connection.
+ * @author VG
+ *
+ */
+public interface Report {
+	/**
+	 * Append formatted query results
+	 * @param s
+	 * @throws IOException
+	 */
+	void append(String s) throws IOException;
+}
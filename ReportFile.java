@@ -0,0 +1,33 @@
+import java.io.*;
+
+/**
+ * Report appended to a file. The file is opened for every append so it is
+ * complete on disk after each query. A file named ".gz" or ".bgz" gets each
+ * append as a new gzip member or blocked gzip block.
+ * @author VG
+ *
+ */
+public class ReportFile implements Report {
+	private final File file;
+
+	public ReportFile(File file) {
+		this.file = file;
+	}
+
+	public File getFile() { return this.file; }
+
+	/**
+	 * Delete the report file, if it exists, to start a new report
+	 */
+	public void clear() {
+		if (this.file.exists()) this.file.delete();
+	}
+
+	@Override
+	public void append(String s) throws IOException {
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+				RecordStreams.create(this.file, true)));
+		out.print(s);
+		out.close();
+	}
+}
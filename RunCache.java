@@ -0,0 +1,232 @@
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Remembers the output and report files produced from a record file and an
+ * instruction file, so a run over byte-for-byte unchanged inputs can be
+ * skipped. Runs are keyed on a SHA-256 hash of both input files, of the
+ * options that change results and of the formats the results are written
+ * in. Entries live in a properties file together with a stamp of the code
+ * that produced them; all of them are dropped when the code changes.
+ *
+ * On a hit, the recorded output and report files are checked against their
+ * hashes. If they are still intact, they are reused, and copied over when
+ * the run targets other files. A report the run did not write is deleted, as
+ * a run always starts a new report. Otherwise the run is a miss and is
+ * executed.
+ * @author VG
+ *
+ */
+public class RunCache {
+	private static final String CODE_VERSION = "codeVersion";
+	private static final String ABSENT = "-";
+
+	private final File file;
+	private final String codeVersion;
+	private final Properties entries = new Properties();
+	private int hits = 0;
+	private int misses = 0;
+
+	/**
+	 * Constructor for run cache. Loads the cache file, if any.
+	 * @param file cache file, created on first store
+	 */
+	public RunCache(File file) {
+		this.file = file;
+		this.codeVersion = codeVersion();
+		if (!file.exists()) return;
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				this.entries.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Run cache unreadable, starting empty: " + e.getMessage());
+			this.entries.clear();
+		}
+		if (!this.codeVersion.equals(this.entries.getProperty(CODE_VERSION)))
+			this.entries.clear();
+	}
+
+	public synchronized int getHits() { return this.hits; }
+	public synchronized int getMisses() { return this.misses; }
+
+	@Override
+	public synchronized String toString() {
+		return "Run cache: " + this.hits + " hits, " + this.misses + " misses";
+	}
+
+	/**
+	 * Compute the key of a run
+	 * @param medicalRecordFile
+	 * @param instructionFile
+	 * @param outputFile
+	 * @param reportFile
+	 * @param options
+	 * @return key, or null if an input cannot be read
+	 */
+	public String key(File medicalRecordFile, File instructionFile, File outputFile,
+			File reportFile, RecordOptions options) {
+		try {
+			return hash(hash(medicalRecordFile) + "|" + hash(instructionFile)
+					+ "|output=" + RecordStreams.formatOf(outputFile)
+					+ "|report=" + RecordStreams.formatOf(reportFile)
+					+ "|shards=" + options.getShardCount()
+					+ "|threads=" + options.getIngestThreads()
+					+ "|deduplication=" + options.getDeduplication());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reuse the results of an earlier run with the same key, if they are
+	 * intact. Counts a hit or a miss.
+	 * @param key
+	 * @param outputFile
+	 * @param reportFile
+	 * @return whether the run can be skipped
+	 */
+	public synchronized boolean reuse(String key, File outputFile, File reportFile) {
+		String entry = key == null ? null : this.entries.getProperty(key);
+		if (entry != null) {
+			String[] fields = entry.split("\\|", -1);
+			try {
+				if (reuse(new File(fields[0]), fields[1], outputFile, false)
+						&& reuse(new File(fields[2]), fields[3], reportFile, true)) {
+					this.hits++;
+					return true;
+				}
+			} catch (IOException e) {
+				System.out.println("Run cache entry not reusable: " + e.getMessage());
+			}
+		}
+		this.misses++;
+		return false;
+	}
+
+	/**
+	 * Record the results of a run that was executed
+	 * @param key
+	 * @param outputFile
+	 * @param reportFile
+	 */
+	public synchronized void store(String key, File outputFile, File reportFile) {
+		if (key == null) return;
+		try {
+			this.entries.setProperty(key, outputFile.getAbsolutePath() + "|"
+					+ hashIfExists(outputFile) + "|" + reportFile.getAbsolutePath()
+					+ "|" + hashIfExists(reportFile));
+			this.entries.setProperty(CODE_VERSION, this.codeVersion);
+			OutputStream out = new FileOutputStream(this.file);
+			try {
+				this.entries.store(out, "EMR run cache");
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Run cache not saved: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Check a recorded file against its hash and copy it to target if needed.
+	 * When the run did not write the file, target is left as is or deleted.
+	 */
+	private static boolean reuse(File recorded, String hash, File target,
+			boolean deleteIfAbsent) throws IOException {
+		if (hash.equals(ABSENT)) {
+			if (deleteIfAbsent && target.exists() && !target.delete())
+				throw new IOException("Cannot delete " + target);
+			return true;
+		}
+		if (!recorded.exists() || !hash(recorded).equals(hash)) return false;
+		if (recorded.getAbsoluteFile().equals(target.getAbsoluteFile())) return true;
+		copy(recorded, target);
+		return true;
+	}
+
+	private static String hashIfExists(File file) throws IOException {
+		return file.exists() ? hash(file) : ABSENT;
+	}
+
+	private static void copy(File from, File to) throws IOException {
+		InputStream in = new FileInputStream(from);
+		try {
+			OutputStream out = new FileOutputStream(to);
+			try {
+				byte[] buffer = new byte[1 << 16];
+				int n;
+				while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String hash(File file) throws IOException {
+		MessageDigest digest = sha256();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buffer)) > 0) digest.update(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		return hex(digest.digest());
+	}
+
+	private static String hash(String s) {
+		try {
+			return hex(sha256().digest(s.getBytes("UTF-8")));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Stamp of the code in use: a hash of the jar or of the class files it is
+	 * loaded from, so any rebuilt class invalidates the cache
+	 */
+	private static String codeVersion() {
+		try {
+			File location = new File(RunCache.class.getProtectionDomain()
+					.getCodeSource().getLocation().toURI());
+			if (location.isFile()) return hash(location);
+			File[] classes = location.listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".class");
+				}
+			});
+			Arrays.sort(classes);
+			String s = "";
+			for (File f : classes) s += f.getName() + "=" + hash(f) + ";";
+			return hash(s);
+		} catch (Exception e) {
+			// No code location: never match a stored stamp
+			return "unknown-" + System.nanoTime();
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder s = new StringBuilder(2 * bytes.length);
+		for (byte b : bytes) s.append(String.format("%02x", b));
+		return s.toString();
+	}
+}